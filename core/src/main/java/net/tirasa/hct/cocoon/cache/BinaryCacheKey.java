@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2012 Tirasa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.hct.cocoon.cache;
+
+import java.net.URL;
+import org.apache.cocoon.pipeline.caching.AbstractCacheKey;
+import org.apache.cocoon.pipeline.caching.CacheKey;
+import org.apache.cocoon.pipeline.util.StringRepresentation;
+import org.apache.cocoon.util.murmurhash.MurmurHashCodeBuilder;
+
+/**
+ * Cache key for repository binaries: besides URL and last modification, it also holds the byte ranges requested, so
+ * that partial responses are cached separately from full ones.
+ */
+public class BinaryCacheKey extends AbstractCacheKey {
+
+    private static final long serialVersionUID = 4189235722463416917L;
+
+    private final URL url;
+
+    private final long timestamp;
+
+    private final String ranges;
+
+    /**
+     * @param url binary URL
+     * @param timestamp binary last modification
+     * @param ranges byte ranges served, or null for the full binary
+     */
+    public BinaryCacheKey(final URL url, final long timestamp, final String ranges) {
+        this.url = url;
+        this.timestamp = timestamp;
+        this.ranges = ranges;
+    }
+
+    public URL getUrl() {
+        return url;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getRanges() {
+        return ranges;
+    }
+
+    @Override
+    public long getLastModified() {
+        return timestamp;
+    }
+
+    @Override
+    public boolean isValid(final CacheKey cacheKey) {
+        return this.equals(cacheKey);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (obj == null) {
+            return false;
+        }
+        if (getClass() != obj.getClass()) {
+            return false;
+        }
+        final BinaryCacheKey other = (BinaryCacheKey) obj;
+        if (this.timestamp != other.timestamp || !this.url.toExternalForm().equals(other.url.toExternalForm())) {
+            return false;
+        }
+        return this.ranges == null ? other.ranges == null : this.ranges.equals(other.ranges);
+    }
+
+    @Override
+    public int hashCode() {
+        return new MurmurHashCodeBuilder().append(this.getClass().getName()).
+                append(this.url.toExternalForm()).append(this.timestamp).
+                append(this.ranges == null ? "" : this.ranges).toHashCode();
+    }
+
+    @Override
+    public String toString() {
+        return StringRepresentation.buildString(this, "url=" + this.url, "timestamp=" + this.timestamp,
+                "ranges=" + this.ranges);
+    }
+}
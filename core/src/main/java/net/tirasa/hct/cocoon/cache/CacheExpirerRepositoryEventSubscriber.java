@@ -15,7 +15,9 @@
  */
 package net.tirasa.hct.cocoon.cache;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import net.tirasa.hct.cocoon.sax.Constants;
@@ -28,16 +30,27 @@ import org.apache.commons.lang3.LocaleUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.hippoecm.hst.content.beans.ObjectBeanManagerException;
 import org.hippoecm.hst.content.beans.standard.HippoDocument;
-import org.hippoecm.hst.content.beans.standard.HippoFolder;
 import org.onehippo.forge.repositoryeventlistener.hst.events.BaseHippoEventSubscriber;
 import org.onehippo.forge.repositoryeventlistener.hst.hippo.HippoEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 
-public class CacheExpirerRepositoryEventSubscriber extends BaseHippoEventSubscriber {
+public class CacheExpirerRepositoryEventSubscriber extends BaseHippoEventSubscriber implements DisposableBean {
 
     private static final Logger LOG = LoggerFactory.getLogger(CacheExpirerRepositoryEventSubscriber.class);
 
+    /**
+     * Events are coalesced and applied in batches, off the event thread.
+     */
+    private final InvalidationQueue queue = new InvalidationQueue(new InvalidationQueue.Handler() {
+
+        @Override
+        public void apply(final List<InvalidationQueue.Invalidation> batch) {
+            expire(batch);
+        }
+    });
+
     @Override
     public String getName() {
         return CacheExpirerRepositoryEventSubscriber.class.getName();
@@ -46,6 +59,10 @@ public class CacheExpirerRepositoryEventSubscriber extends BaseHippoEventSubscri
     private boolean findExpiredCacheKeys(final CacheKey cacheKey,
             final Constants.Availability availability, final String locale) {
 
+        if (cacheKey instanceof DependencyTrackingCacheKey) {
+            // expired via repository observation, only if any of the paths read has changed
+            return ((DependencyTrackingCacheKey) cacheKey).isExpired();
+        }
         if (cacheKey instanceof AvailabilityLocaleCacheKey) {
             final AvailabilityLocaleCacheKey alck = (AvailabilityLocaleCacheKey) cacheKey;
 
@@ -54,6 +71,12 @@ public class CacheExpirerRepositoryEventSubscriber extends BaseHippoEventSubscri
         }
         if (cacheKey instanceof CompoundCacheKey) {
             final CompoundCacheKey compound = (CompoundCacheKey) cacheKey;
+            for (CacheKey inner : compound.getCacheKeys()) {
+                if (inner instanceof DependencyTrackingCacheKey) {
+                    return findExpiredCacheKeys(inner, availability, locale);
+                }
+            }
+
             boolean found = false;
             for (CacheKey inner : compound.getCacheKeys()) {
                 found |= findExpiredCacheKeys(inner, availability, locale);
@@ -77,20 +100,14 @@ public class CacheExpirerRepositoryEventSubscriber extends BaseHippoEventSubscri
 
         String locale = null;
         try {
-            if (getObjectBeanManager().getObject(event.getPath()) != null 
-                    && getObjectBeanManager().getObject(event.getPath()) instanceof HippoDocument) {
-                final HippoDocument doc = (HippoDocument) getObjectBeanManager().getObject(event.getPath());
-                locale = doc.getLocaleString();
+            final Object object = getObjectBeanManager().getObject(event.getPath());
+            if (object instanceof HippoDocument) {
+                locale = ((HippoDocument) object).getLocaleString();
             }
         } catch (ObjectBeanManagerException e) {
             LOG.error("Could not get HippoDocument for {}", event.getPath(), e);
         }
 
-        if (StringUtils.isBlank(locale)) {
-            LOG.warn("No locale could be found, aborting");
-            return;
-        }
-
         Constants.Availability availability;
         switch (event.getType()) {
             case PUBLISHED:
@@ -102,28 +119,74 @@ public class CacheExpirerRepositoryEventSubscriber extends BaseHippoEventSubscri
                 availability = Constants.Availability.preview;
         }
 
-        LOG.debug("Expiring {} {}", locale, availability);
+        queue.offer(new InvalidationQueue.Invalidation(StringUtils.isBlank(locale) ? null : locale, availability,
+                event.getPath()));
+    }
+
+    public InvalidationQueue getQueue() {
+        return queue;
+    }
 
+    /**
+     * Stops applying invalidations when the application context is closed.
+     */
+    @Override
+    public void destroy() {
+        queue.shutdown();
+    }
+
+    /**
+     * Removes all cache entries affected by the given invalidations.
+     *
+     * @param batch invalidations
+     */
+    private void expire(final List<InvalidationQueue.Invalidation> batch) {
         final Cache cache = ApplicationContextProvider.getApplicationContext().getBean(Cache.class);
         if (cache == null) {
             LOG.warn("No Cocoon cache found, aborting");
-        } else {
-            LOG.debug("Cocoon cache obtained: {}", cache);
+            return;
+        }
+        LOG.debug("Cocoon cache obtained: {}", cache);
 
-            final Set<CacheKey> expired = new HashSet<CacheKey>();
-            for (CacheKey key : cache.keySet()) {
-                if (findExpiredCacheKeys(key, availability, locale)) {
-                    expired.add(key);
-                }
+        final Set<String> paths = new HashSet<String>();
+        final Set<String> localeKeys = new HashSet<String>();
+        final List<InvalidationQueue.Invalidation> withLocale = new ArrayList<InvalidationQueue.Invalidation>();
+        for (InvalidationQueue.Invalidation invalidation : batch) {
+            paths.add(invalidation.getPath());
+            if (invalidation.getLocale() != null
+                    && localeKeys.add(invalidation.getLocale() + "|" + invalidation.getAvailability())) {
+
+                withLocale.add(invalidation);
             }
+        }
 
-            LOG.debug("Cache keys to remove #{} {}", expired.size(), expired);
+        final Set<CacheKey> expired = new HashSet<CacheKey>();
+        if (cache instanceof IndexedCache) {
+            final IndexedCache indexedCache = (IndexedCache) cache;
 
-            LOG.debug("# of cache keys before removal: {}", cache.keySet().size());
-            for (CacheKey key : expired) {
-                cache.remove(key);
+            expired.addAll(indexedCache.findByPaths(paths));
+            for (InvalidationQueue.Invalidation invalidation : withLocale) {
+                expired.addAll(indexedCache.findByLocale(invalidation.getLocale(), invalidation.getAvailability()));
             }
-            LOG.debug("# of cache keys after removal: {}", cache.keySet().size());
+        } else if (withLocale.isEmpty()) {
+            LOG.warn("No locale could be found for {}, aborting", paths);
+            return;
+        } else {
+            // a single scan for the whole batch
+            for (CacheKey key : cache.keySet()) {
+                for (InvalidationQueue.Invalidation invalidation : withLocale) {
+                    if (findExpiredCacheKeys(key, invalidation.getAvailability(), invalidation.getLocale())) {
+                        expired.add(key);
+                        break;
+                    }
+                }
+            }
+        }
+
+        LOG.debug("Expiring after {} invalidations: cache keys to remove #{} {}",
+                new Object[] { batch.size(), expired.size(), expired });
+        for (CacheKey key : expired) {
+            cache.remove(key);
         }
     }
 }
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2012 Tirasa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.hct.cocoon.cache;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+import net.tirasa.hct.cocoon.sax.Constants.Availability;
+import net.tirasa.hct.repository.HCTPathInvalidatedCache;
+import org.apache.cocoon.pipeline.caching.CacheKey;
+import org.apache.cocoon.pipeline.util.StringRepresentation;
+
+/**
+ * Availability and locale cache key that also records the repository paths read while producing the cached content:
+ * it stays valid until any change is notified at, under or above one of such paths.
+ * The number of keys tracked can be tuned via the <tt>net.tirasa.hct.pipelineCache.size</tt> system property
+ * (default 10000): keys no longer tracked are considered expired.
+ */
+public class DependencyTrackingCacheKey extends AvailabilityLocaleCacheKey {
+
+    private static final long serialVersionUID = 4395734811508325913L;
+
+    /**
+     * Registration time of valid keys, by id.
+     */
+    private static final HCTPathInvalidatedCache<Long> REGISTRY = new HCTPathInvalidatedCache<Long>(
+            "pipeline", "/content", Integer.getInteger("net.tirasa.hct.pipelineCache.size", 10000));
+
+    private final String id = UUID.randomUUID().toString();
+
+    /**
+     * Taken at creation, before any content is read.
+     */
+    private final long generation = REGISTRY.getGeneration();
+
+    private final Set<String> dependencies = new LinkedHashSet<String>();
+
+    private long lastModified = System.currentTimeMillis();
+
+    public DependencyTrackingCacheKey(final Availability availability, final Locale locale) {
+        super(availability, locale);
+    }
+
+    public static int getTrackedKeys() {
+        return REGISTRY.size();
+    }
+
+    public static long getInvalidations() {
+        return REGISTRY.getInvalidations();
+    }
+
+    public static long getEvictions() {
+        return REGISTRY.getEvictions();
+    }
+
+    /**
+     * @param paths repository paths read while producing the content to be cached
+     */
+    public void addDependencies(final Collection<String> paths) {
+        synchronized (dependencies) {
+            dependencies.addAll(paths);
+        }
+    }
+
+    public Set<String> getDependencies() {
+        synchronized (dependencies) {
+            return Collections.unmodifiableSet(new LinkedHashSet<String>(dependencies));
+        }
+    }
+
+    /**
+     * To be invoked once content was produced: from now on, this key is valid until any of its dependencies changes.
+     * If any of its dependencies changed since creation, this key is never valid.
+     */
+    public void register() {
+        final String[] paths;
+        synchronized (dependencies) {
+            paths = dependencies.toArray(new String[dependencies.size()]);
+        }
+        lastModified = System.currentTimeMillis();
+        REGISTRY.put(id, lastModified, generation, paths);
+    }
+
+    public boolean isExpired() {
+        return REGISTRY.get(id) == null;
+    }
+
+    /**
+     * Marks this key as expired.
+     */
+    public void expire() {
+        REGISTRY.remove(id);
+    }
+
+    @Override
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public boolean isValid(final CacheKey cacheKey) {
+        return this.equals(cacheKey) && !isExpired();
+    }
+
+    @Override
+    public String toString() {
+        return StringRepresentation.buildString(this, "availability=" + getAvailability(), "locale=" + getLocale(),
+                "dependencies=" + getDependencies());
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2012 Tirasa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.hct.cocoon.cache;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import net.tirasa.hct.cocoon.sax.Constants.Availability;
+import org.apache.cocoon.pipeline.caching.Cache;
+import org.apache.cocoon.pipeline.caching.CacheKey;
+import org.apache.cocoon.pipeline.caching.CacheValue;
+import org.apache.cocoon.pipeline.caching.CompoundCacheKey;
+import org.apache.cocoon.pipeline.caching.ParameterCacheKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cocoon cache decorator keeping a reverse index of stored keys: by repository path, for keys tracking their
+ * dependencies, and by locale and availability otherwise. This allows {@link CacheExpirerRepositoryEventSubscriber}
+ * to find the keys affected by a repository event without scanning the whole cache.
+ * To be used, declare the Cocoon cache bean as an instance of this class, wrapping the actual cache.
+ */
+public class IndexedCache implements Cache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IndexedCache.class);
+
+    private static final int MIN_PRUNE_THRESHOLD = 1024;
+
+    private final Cache delegate;
+
+    /**
+     * Keys tracking dependencies, by dependency path; sorted, so that subtrees are contiguous.
+     */
+    private final TreeMap<String, Set<CacheKey>> byPath = new TreeMap<String, Set<CacheKey>>();
+
+    /**
+     * Other keys, by locale and availability.
+     */
+    private final Map<String, Set<CacheKey>> byLocale = new HashMap<String, Set<CacheKey>>();
+
+    /**
+     * Index entries, by key; guards all indexes.
+     */
+    private final Map<CacheKey, Set<String>> indexed = new HashMap<CacheKey, Set<String>>();
+
+    /**
+     * Number of indexed keys beyond which keys no longer stored are pruned; guarded by indexed.
+     */
+    private int pruneThreshold = MIN_PRUNE_THRESHOLD;
+
+    public IndexedCache(final Cache delegate) {
+        this.delegate = delegate;
+    }
+
+    private static String getLocaleKey(final String locale, final Availability availability) {
+        return locale + "|" + availability.name();
+    }
+
+    private static DependencyTrackingCacheKey findDependencyTrackingKey(final CacheKey cacheKey) {
+        if (cacheKey instanceof DependencyTrackingCacheKey) {
+            return (DependencyTrackingCacheKey) cacheKey;
+        }
+        if (cacheKey instanceof CompoundCacheKey) {
+            for (CacheKey inner : ((CompoundCacheKey) cacheKey).getCacheKeys()) {
+                final DependencyTrackingCacheKey found = findDependencyTrackingKey(inner);
+                if (found != null) {
+                    return found;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static void findLocaleKeys(final CacheKey cacheKey, final Set<String> localeKeys) {
+        if (cacheKey instanceof AvailabilityLocaleCacheKey) {
+            final AvailabilityLocaleCacheKey alck = (AvailabilityLocaleCacheKey) cacheKey;
+            localeKeys.add(getLocaleKey(alck.getLocale().toString(), alck.getAvailability()));
+        }
+        if (cacheKey instanceof CompoundCacheKey) {
+            for (CacheKey inner : ((CompoundCacheKey) cacheKey).getCacheKeys()) {
+                findLocaleKeys(inner, localeKeys);
+            }
+        }
+        if (cacheKey instanceof ParameterCacheKey) {
+            final Map<String, String> parameters = ((ParameterCacheKey) cacheKey).getParameters();
+            if (parameters.containsKey("availability") && parameters.containsKey("locale")) {
+                try {
+                    localeKeys.add(getLocaleKey(parameters.get("locale"),
+                            Availability.valueOf(parameters.get("availability"))));
+                } catch (IllegalArgumentException e) {
+                    LOG.debug("Invalid availability found in {}", cacheKey, e);
+                }
+            }
+        }
+    }
+
+    private static void add(final Map<String, Set<CacheKey>> index, final String indexKey, final CacheKey cacheKey) {
+        Set<CacheKey> keys = index.get(indexKey);
+        if (keys == null) {
+            keys = new HashSet<CacheKey>();
+            index.put(indexKey, keys);
+        }
+        keys.add(cacheKey);
+    }
+
+    private void index(final CacheKey cacheKey) {
+        final Set<String> paths = new HashSet<String>();
+        final Set<String> localeKeys = new HashSet<String>();
+
+        final DependencyTrackingCacheKey dependencyKey = findDependencyTrackingKey(cacheKey);
+        if (dependencyKey == null) {
+            findLocaleKeys(cacheKey, localeKeys);
+        } else {
+            paths.addAll(dependencyKey.getDependencies());
+        }
+
+        synchronized (indexed) {
+            unindex(cacheKey);
+
+            for (String path : paths) {
+                add(byPath, path, cacheKey);
+            }
+            for (String localeKey : localeKeys) {
+                add(byLocale, localeKey, cacheKey);
+            }
+            paths.addAll(localeKeys);
+            indexed.put(cacheKey, paths);
+
+            // keys evicted by the underlying cache are not notified: prune from time to time
+            if (indexed.size() > pruneThreshold) {
+                prune();
+                pruneThreshold = Math.max(MIN_PRUNE_THRESHOLD, 2 * indexed.size());
+            }
+        }
+    }
+
+    private static void remove(final Map<String, Set<CacheKey>> index, final String indexKey,
+            final CacheKey cacheKey) {
+
+        final Set<CacheKey> keys = index.get(indexKey);
+        if (keys != null) {
+            keys.remove(cacheKey);
+            if (keys.isEmpty()) {
+                index.remove(indexKey);
+            }
+        }
+    }
+
+    private void unindex(final CacheKey cacheKey) {
+        final Set<String> indexKeys = indexed.remove(cacheKey);
+        if (indexKeys != null) {
+            for (String indexKey : indexKeys) {
+                remove(byPath, indexKey, cacheKey);
+                remove(byLocale, indexKey, cacheKey);
+            }
+        }
+    }
+
+    private void prune() {
+        final Set<CacheKey> stored = delegate.keySet();
+        int pruned = 0;
+        for (CacheKey cacheKey : new HashSet<CacheKey>(indexed.keySet())) {
+            if (!stored.contains(cacheKey)) {
+                unindex(cacheKey);
+                pruned++;
+            }
+        }
+        LOG.debug("{} evicted keys pruned from index", pruned);
+    }
+
+    /**
+     * @param paths changed repository paths
+     * @return stored keys depending on any of the given paths, on any of their descendants or ancestors
+     */
+    public Set<CacheKey> findByPaths(final Set<String> paths) {
+        final Set<CacheKey> found = new HashSet<CacheKey>();
+        synchronized (indexed) {
+            for (String path : paths) {
+                // the path itself and its descendants
+                final Set<CacheKey> same = byPath.get(path);
+                if (same != null) {
+                    found.addAll(same);
+                }
+                for (Set<CacheKey> keys : byPath.subMap(path + "/", path + "0").values()) {
+                    found.addAll(keys);
+                }
+
+                // its ancestors
+                for (int index = path.lastIndexOf('/'); index >= 0; index = path.lastIndexOf('/', index - 1)) {
+                    final Set<CacheKey> ancestor = byPath.get(index == 0 ? "/" : path.substring(0, index));
+                    if (ancestor != null) {
+                        found.addAll(ancestor);
+                    }
+                    if (index == 0) {
+                        break;
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @param locale locale
+     * @param availability availability
+     * @return stored keys not tracking dependencies, for the given locale and availability
+     */
+    public Set<CacheKey> findByLocale(final String locale, final Availability availability) {
+        synchronized (indexed) {
+            final Set<CacheKey> keys = byLocale.get(getLocaleKey(locale, availability));
+            return keys == null ? new HashSet<CacheKey>() : new HashSet<CacheKey>(keys);
+        }
+    }
+
+    public int getIndexedKeys() {
+        synchronized (indexed) {
+            return indexed.size();
+        }
+    }
+
+    @Override
+    public void put(final CacheKey cacheKey, final CacheValue cacheValue) {
+        delegate.put(cacheKey, cacheValue);
+        index(cacheKey);
+    }
+
+    @Override
+    public CacheValue get(final CacheKey cacheKey) {
+        return delegate.get(cacheKey);
+    }
+
+    @Override
+    public CacheValue get(final CacheKey cacheKey, final boolean includeInvalid) {
+        return delegate.get(cacheKey, includeInvalid);
+    }
+
+    @Override
+    public Set<CacheKey> keySet() {
+        return delegate.keySet();
+    }
+
+    @Override
+    public boolean remove(final CacheKey cacheKey) {
+        synchronized (indexed) {
+            unindex(cacheKey);
+        }
+        return delegate.remove(cacheKey);
+    }
+
+    @Override
+    public void clear() {
+        synchronized (indexed) {
+            byPath.clear();
+            byLocale.clear();
+            indexed.clear();
+        }
+        delegate.clear();
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2012 Tirasa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.hct.cocoon.cache;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import net.tirasa.hct.cocoon.sax.Constants.Availability;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects cache invalidations, removing duplicates, and hands them in batches to a background thread once no new
+ * invalidation arrived for <tt>net.tirasa.hct.invalidation.window</tt> ms (default 500), or at latest
+ * <tt>net.tirasa.hct.invalidation.maxDelay</tt> ms (default 5000) after the oldest pending one.
+ */
+public class InvalidationQueue {
+
+    /**
+     * Applies a batch of invalidations, on the background thread.
+     */
+    public interface Handler {
+
+        void apply(List<Invalidation> batch);
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(InvalidationQueue.class);
+
+    private static final long WINDOW = Long.getLong("net.tirasa.hct.invalidation.window", 500L);
+
+    private static final long MAX_DELAY = Long.getLong("net.tirasa.hct.invalidation.maxDelay", 5000L);
+
+    private final Handler handler;
+
+    private final long window;
+
+    private final long maxDelay;
+
+    /**
+     * Pending invalidations, by locale, availability and path; guards all timing fields.
+     */
+    private final Map<String, Invalidation> pending = new LinkedHashMap<String, Invalidation>();
+
+    private long oldestOffer = 0;
+
+    private long latestOffer = 0;
+
+    private Thread worker;
+
+    private boolean stopped = false;
+
+    private final AtomicLong offered = new AtomicLong();
+
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private final AtomicLong batches = new AtomicLong();
+
+    private final AtomicLong applied = new AtomicLong();
+
+    private final AtomicLong lastLag = new AtomicLong();
+
+    private final AtomicLong maxLag = new AtomicLong();
+
+    public InvalidationQueue(final Handler handler) {
+        this(handler, WINDOW, MAX_DELAY);
+    }
+
+    InvalidationQueue(final Handler handler, final long window, final long maxDelay) {
+        this.handler = handler;
+        this.window = window;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Enqueues the given invalidation, unless an equal one is already pending or the queue was shut down.
+     *
+     * @param invalidation invalidation
+     */
+    public void offer(final Invalidation invalidation) {
+        offered.incrementAndGet();
+
+        synchronized (pending) {
+            if (stopped) {
+                LOG.debug("Queue shut down, discarding {}", invalidation);
+                return;
+            }
+
+            if (pending.containsKey(invalidation.getId())) {
+                coalesced.incrementAndGet();
+            } else {
+                pending.put(invalidation.getId(), invalidation);
+            }
+
+            latestOffer = System.currentTimeMillis();
+            if (oldestOffer == 0) {
+                oldestOffer = latestOffer;
+            }
+
+            if (worker == null) {
+                worker = new Thread(new Worker(), "hct-invalidation");
+                worker.setDaemon(true);
+                worker.start();
+            }
+            pending.notifyAll();
+        }
+    }
+
+    /**
+     * Stops the background thread, discarding pending invalidations, and waits for it to terminate; invalidations
+     * offered afterwards are discarded.
+     */
+    public void shutdown() {
+        final Thread stopping;
+        synchronized (pending) {
+            stopped = true;
+            pending.clear();
+            oldestOffer = 0;
+            stopping = worker;
+            worker = null;
+        }
+
+        if (stopping != null) {
+            stopping.interrupt();
+            try {
+                stopping.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Terminates the worker even if the interrupt was swallowed while applying a batch.
+     *
+     * @throws InterruptedException if the queue was shut down
+     */
+    private void checkStopped() throws InterruptedException {
+        if (stopped) {
+            throw new InterruptedException("Queue shut down");
+        }
+    }
+
+    private List<Invalidation> takeBatch() throws InterruptedException {
+        synchronized (pending) {
+            while (pending.isEmpty()) {
+                checkStopped();
+                pending.wait();
+            }
+
+            // wait for the burst to end, but not longer than allowed
+            for (long now = System.currentTimeMillis();
+                    now - latestOffer < window && now - oldestOffer < maxDelay;
+                    now = System.currentTimeMillis()) {
+
+                pending.wait(Math.max(1, Math.min(latestOffer + window, oldestOffer + maxDelay) - now));
+            }
+            checkStopped();
+
+            final long lag = System.currentTimeMillis() - oldestOffer;
+            lastLag.set(lag);
+            if (lag > maxLag.get()) {
+                maxLag.set(lag);
+            }
+
+            final List<Invalidation> batch = new ArrayList<Invalidation>(pending.values());
+            pending.clear();
+            oldestOffer = 0;
+            return batch;
+        }
+    }
+
+    /**
+     * @return number of pending invalidations
+     */
+    public int getQueueDepth() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * @return age of the oldest pending invalidation, in ms
+     */
+    public long getCurrentLag() {
+        synchronized (pending) {
+            return oldestOffer == 0 ? 0 : System.currentTimeMillis() - oldestOffer;
+        }
+    }
+
+    /**
+     * @return age of the oldest invalidation in the latest batch, when taken, in ms
+     */
+    public long getLastLag() {
+        return lastLag.get();
+    }
+
+    public long getMaxLag() {
+        return maxLag.get();
+    }
+
+    public long getOffered() {
+        return offered.get();
+    }
+
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    public long getApplied() {
+        return applied.get();
+    }
+
+    private class Worker implements Runnable {
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                final List<Invalidation> batch;
+                try {
+                    batch = takeBatch();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+
+                try {
+                    handler.apply(batch);
+                    batches.incrementAndGet();
+                    applied.addAndGet(batch.size());
+                } catch (RuntimeException e) {
+                    LOG.error("While applying {} invalidations", batch.size(), e);
+                }
+            }
+        }
+    }
+
+    public static class Invalidation {
+
+        private final String locale;
+
+        private final Availability availability;
+
+        private final String path;
+
+        public Invalidation(final String locale, final Availability availability, final String path) {
+            this.locale = locale;
+            this.availability = availability;
+            this.path = path;
+        }
+
+        public String getId() {
+            return locale + "|" + availability + "|" + path;
+        }
+
+        /**
+         * @return locale, or null if not found
+         */
+        public String getLocale() {
+            return locale;
+        }
+
+        public Availability getAvailability() {
+            return availability;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        @Override
+        public String toString() {
+            return getId();
+        }
+    }
+}
@@ -16,6 +16,8 @@
 package net.tirasa.hct.cocoon.sax;
 
 import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
 import org.apache.commons.lang3.StringUtils;
 import org.hippoecm.hst.content.beans.standard.HippoAsset;
 import org.hippoecm.hst.content.beans.standard.HippoAvailableTranslations;
@@ -108,28 +110,40 @@ public class Constants {
         TAGS("tags"),
         TAG("tag");
 
+        private static final Map<String, Element> BY_NAME = new HashMap<String, Element>();
+
+        static {
+            for (Element element : values()) {
+                BY_NAME.put(element.getName(), element);
+            }
+        }
+
         private String name;
 
+        private String qName;
+
         Element(final String name) {
             this.name = name;
+            this.qName = PREFIX_HCT + ":" + name;
         }
 
         public String getName() {
             return name;
         }
 
+        /**
+         * @return qualified name, with HCT prefix
+         */
+        public String getQName() {
+            return qName;
+        }
+
         public static Element fromName(final String name) {
             if (StringUtils.isBlank(name)) {
                 throw new IllegalArgumentException("Empty element name");
             }
 
-            Element result = null;
-            for (Element element : values()) {
-                if (name.equals(element.getName())) {
-                    result = element;
-                }
-            }
-
+            final Element result = BY_NAME.get(name);
             if (result == null) {
                 throw new IllegalArgumentException("Unexpected element name: " + name);
             }
@@ -222,6 +236,8 @@ public class Constants {
         SIZE_KB("sizeKb"),
         LAST_MOD("lastModified"),
         INCLUDE_FOLDERS("includeFolders"),
+        COUNT_MODE("countMode"),
+        CONCURRENCY("concurrency"),
         DATE_FORMAT("dateFormat"),
         SCORE("score");
 
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2012 Tirasa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.hct.cocoon.sax;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import net.tirasa.hct.repository.HCTPathInvalidatedCache;
+import net.tirasa.hct.util.BinaryStreamer;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local copies of repository binaries, keyed by resource UUID and last modification, to be served from disk.
+ * Files are written under a temporary name and then renamed, so that incomplete files are never served; least
+ * recently used files are deleted once their total size exceeds the limit, and any change under a resource path
+ * deletes its copy. Can be tuned via the following system properties:
+ * <ul>
+ * <li><tt>net.tirasa.hct.binaryCache.dir</tt> - base directory (default <tt>hct-binaries</tt> under
+ * <tt>java.io.tmpdir</tt>), where each instance creates its own subdirectory, deleted at shutdown</li>
+ * <li><tt>net.tirasa.hct.binaryCache.size</tt> - total size in bytes (default 512 MB)</li>
+ * <li><tt>net.tirasa.hct.binaryCache.maxFileSize</tt> - size in bytes of the largest binary to copy (default
+ * 32 MB)</li>
+ * </ul>
+ */
+public final class HippoBinaryCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HippoBinaryCache.class);
+
+    private static final File BASE_DIR = new File(System.getProperty("net.tirasa.hct.binaryCache.dir",
+            new File(System.getProperty("java.io.tmpdir"), "hct-binaries").getAbsolutePath()));
+
+    private static final long MAX_FILE_SIZE = Long.getLong("net.tirasa.hct.binaryCache.maxFileSize", 32L << 20);
+
+    private static final HCTPathInvalidatedCache<File> CACHE = new HCTPathInvalidatedCache<File>(
+            "binary", "/content", Long.getLong("net.tirasa.hct.binaryCache.size", 512L << 20)) {
+
+        @Override
+        protected long weigh(final File value) {
+            return value.length();
+        }
+
+        @Override
+        protected void onRemoval(final File value) {
+            if (!value.delete()) {
+                LOG.debug("Could not delete {}", value);
+            }
+        }
+    };
+
+    private static final File DIR = init();
+
+    private static final boolean ENABLED = DIR != null;
+
+    private HippoBinaryCache() {
+    }
+
+    /**
+     * @return directory owned by this instance, so that other instances sharing the base directory are not affected
+     */
+    private static File init() {
+        try {
+            FileUtils.forceMkdir(BASE_DIR);
+            final File dir = File.createTempFile("cache-", "", BASE_DIR);
+            if (!dir.delete() || !dir.mkdir()) {
+                throw new IOException("Could not create directory " + dir);
+            }
+
+            Runtime.getRuntime().addShutdownHook(new Thread("hct-binary-cache-cleanup") {
+
+                @Override
+                public void run() {
+                    FileUtils.deleteQuietly(dir);
+                }
+            });
+            return dir;
+        } catch (IOException e) {
+            LOG.error("Could not initialize {}, binary cache disabled", BASE_DIR, e);
+            return null;
+        }
+    }
+
+    private static String getKey(final String uuid, final long lastModified) {
+        return uuid + "-" + lastModified;
+    }
+
+    /**
+     * @param length binary length
+     * @return whether a binary with the given length can be copied to disk
+     */
+    public static boolean isCacheable(final long length) {
+        return ENABLED && length >= 0 && length <= MAX_FILE_SIZE;
+    }
+
+    /**
+     * @param uuid resource UUID
+     * @param lastModified resource last modification
+     * @return local copy, or null if not available
+     */
+    public static File get(final String uuid, final long lastModified) {
+        final File file = CACHE.get(getKey(uuid, lastModified));
+        return file == null || !file.isFile() ? null : file;
+    }
+
+    /**
+     * Copies the given binary to disk.
+     *
+     * @param uuid resource UUID
+     * @param lastModified resource last modification
+     * @param path resource path
+     * @param input binary content, not closed by this method
+     * @return local copy, or null if it could not be cached
+     * @throws IOException if copying fails
+     */
+    public static File put(final String uuid, final long lastModified, final String path, final InputStream input)
+            throws IOException {
+
+        if (!ENABLED) {
+            return null;
+        }
+
+        final String key = getKey(uuid, lastModified);
+        final File temp = File.createTempFile(key, ".tmp", DIR);
+        final File file = new File(DIR, key + ".bin");
+
+        FileOutputStream output = null;
+        try {
+            output = new FileOutputStream(temp);
+            BinaryStreamer.copy(input, output);
+        } catch (IOException e) {
+            IOUtils.closeQuietly(output);
+            FileUtils.deleteQuietly(temp);
+            throw e;
+        } finally {
+            IOUtils.closeQuietly(output);
+        }
+
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+            FileUtils.deleteQuietly(temp);
+            LOG.warn("Could not rename {} to {}", temp, file);
+            return null;
+        }
+
+        if (!CACHE.put(key, file, path)) {
+            FileUtils.deleteQuietly(file);
+            return null;
+        }
+        return file;
+    }
+
+    public static int size() {
+        return CACHE.size();
+    }
+
+    /**
+     * @return total size of local copies, in bytes
+     */
+    public static long getWeight() {
+        return CACHE.getWeight();
+    }
+
+    public static long getHits() {
+        return CACHE.getHits();
+    }
+
+    public static long getMisses() {
+        return CACHE.getMisses();
+    }
+
+    public static double getHitRatio() {
+        return CACHE.getHitRatio();
+    }
+
+    public static long getEvictions() {
+        return CACHE.getEvictions();
+    }
+
+    public static long getInvalidations() {
+        return CACHE.getInvalidations();
+    }
+
+    public static void clear() {
+        CACHE.clear();
+    }
+}
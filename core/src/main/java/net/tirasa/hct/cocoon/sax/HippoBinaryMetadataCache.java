@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2012 Tirasa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.hct.cocoon.sax;
+
+import net.tirasa.hct.repository.HCTPathInvalidatedCache;
+
+/**
+ * Metadata of repository binaries, keyed by requested path and image variant, so that binaries can be served without
+ * mapping gallery or asset beans. Entries are removed upon any change to the requested item or to its resource.
+ * Size can be tuned via the <tt>net.tirasa.hct.binaryMetadataCache.size</tt> system property (default 10000).
+ */
+public final class HippoBinaryMetadataCache {
+
+    private static final HCTPathInvalidatedCache<Metadata> CACHE = new HCTPathInvalidatedCache<Metadata>(
+            "binaryMetadata", "/content", Integer.getInteger("net.tirasa.hct.binaryMetadataCache.size", 10000));
+
+    private HippoBinaryMetadataCache() {
+    }
+
+    public static String getKey(final String path, final String variant) {
+        return path + "|" + variant;
+    }
+
+    public static Metadata get(final String key) {
+        return CACHE.get(key);
+    }
+
+    /**
+     * @return current generation, to be taken before reading metadata
+     */
+    public static long getGeneration() {
+        return CACHE.getGeneration();
+    }
+
+    /**
+     * Caches the given metadata, unless any of its dependencies changed since the given generation.
+     *
+     * @param key key
+     * @param metadata binary metadata
+     * @param generation generation taken before reading metadata
+     * @param path requested path
+     */
+    public static void put(final String key, final Metadata metadata, final long generation, final String path) {
+        CACHE.put(key, metadata, generation, path, metadata.getPath());
+    }
+
+    public static int size() {
+        return CACHE.size();
+    }
+
+    public static long getHits() {
+        return CACHE.getHits();
+    }
+
+    public static long getMisses() {
+        return CACHE.getMisses();
+    }
+
+    public static double getHitRatio() {
+        return CACHE.getHitRatio();
+    }
+
+    public static long getEvictions() {
+        return CACHE.getEvictions();
+    }
+
+    public static long getInvalidations() {
+        return CACHE.getInvalidations();
+    }
+
+    public static void clear() {
+        CACHE.clear();
+    }
+
+    public static class Metadata {
+
+        private final String uuid;
+
+        private final String path;
+
+        private final long lastModified;
+
+        private final String mimeType;
+
+        private final long length;
+
+        public Metadata(final String uuid, final String path, final long lastModified, final String mimeType,
+                final long length) {
+
+            this.uuid = uuid;
+            this.path = path;
+            this.lastModified = lastModified;
+            this.mimeType = mimeType;
+            this.length = length;
+        }
+
+        /**
+         * @return resource UUID
+         */
+        public String getUuid() {
+            return uuid;
+        }
+
+        /**
+         * @return resource path
+         */
+        public String getPath() {
+            return path;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public String getMimeType() {
+            return mimeType;
+        }
+
+        public long getLength() {
+            return length;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2012 Tirasa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.hct.cocoon.sax;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import javax.jcr.RepositoryException;
+import net.tirasa.hct.cocoon.sax.Constants.Availability;
+import net.tirasa.hct.repository.HCTPathInvalidatedCache;
+import org.apache.cocoon.xml.sax.SAXBuffer;
+import org.hippoecm.hst.content.beans.standard.HippoDocument;
+
+/**
+ * Output of <tt>hct:document</tt> elements, as replayable SAX events, keyed by document variant, availability, locale
+ * and date format. Entries are removed upon any change to the document or to any item referenced in its output
+ * (images, assets, related documents, links, taxonomies, translations). Size can be tuned via the
+ * <tt>net.tirasa.hct.documentCache.size</tt> system property (default 1000).
+ */
+public final class HippoDocumentCache {
+
+    private static final HCTPathInvalidatedCache<Fragment> CACHE = new HCTPathInvalidatedCache<Fragment>(
+            "document", "/content", Integer.getInteger("net.tirasa.hct.documentCache.size", 1000));
+
+    private HippoDocumentCache() {
+    }
+
+    public static String getKey(final HippoDocument doc, final Availability availability, final Locale locale,
+            final String dateFormat) throws RepositoryException {
+
+        return new StringBuilder(doc.getNode().getIdentifier()).append('|').append(availability).append('|').
+                append(locale).append('|').append(dateFormat).toString();
+    }
+
+    public static Fragment get(final String key) {
+        return CACHE.get(key);
+    }
+
+    /**
+     * @return current generation, to be taken before dumping a document
+     */
+    public static long getGeneration() {
+        return CACHE.getGeneration();
+    }
+
+    /**
+     * Caches the given fragment, unless any of its dependencies changed since the given generation.
+     *
+     * @param key key
+     * @param fragment recorded SAX events
+     * @param generation generation taken before dumping
+     * @param dependencies paths of all repository items read while dumping
+     */
+    public static void put(final String key, final SAXBuffer fragment, final long generation,
+            final Collection<String> dependencies) {
+
+        final String[] paths = dependencies.toArray(new String[dependencies.size()]);
+        CACHE.put(key, new Fragment(fragment, paths), generation, paths);
+    }
+
+    public static int size() {
+        return CACHE.size();
+    }
+
+    public static long getHits() {
+        return CACHE.getHits();
+    }
+
+    public static long getMisses() {
+        return CACHE.getMisses();
+    }
+
+    public static double getHitRatio() {
+        return CACHE.getHitRatio();
+    }
+
+    public static long getEvictions() {
+        return CACHE.getEvictions();
+    }
+
+    public static long getInvalidations() {
+        return CACHE.getInvalidations();
+    }
+
+    public static void clear() {
+        CACHE.clear();
+    }
+
+    public static class Fragment {
+
+        private final SAXBuffer buffer;
+
+        private final List<String> dependencies;
+
+        public Fragment(final SAXBuffer buffer, final String... dependencies) {
+            this.buffer = buffer;
+            this.dependencies = Collections.unmodifiableList(Arrays.asList(dependencies));
+        }
+
+        public SAXBuffer getBuffer() {
+            return buffer;
+        }
+
+        /**
+         * @return paths of all repository items read while dumping
+         */
+        public List<String> getDependencies() {
+            return dependencies;
+        }
+    }
+}
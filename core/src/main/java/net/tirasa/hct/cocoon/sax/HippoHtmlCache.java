@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2012 Tirasa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.hct.cocoon.sax;
+
+import java.io.IOException;
+import java.io.StringReader;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import net.tirasa.hct.cocoon.sax.Constants.StartEndDocumentFilter;
+import net.tirasa.hct.repository.HCTPathInvalidatedCache;
+import org.apache.cocoon.sax.util.XMLUtils;
+import org.apache.cocoon.xml.sax.SAXBuffer;
+import org.hippoecm.hst.content.beans.standard.HippoHtml;
+import org.hippoecm.repository.api.HippoNodeType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+/**
+ * Parsed rich text fields, as replayable SAX events, keyed by node identifier and last modification date of the
+ * containing document. Entries are also removed upon any change under the rich text node. Memory usage is capped by
+ * the <tt>net.tirasa.hct.htmlCache.maxBytes</tt> system property (default 16 MB), estimated as 4 bytes per character
+ * of content.
+ */
+public final class HippoHtmlCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HippoHtmlCache.class);
+
+    private static final String LAST_MODIFIED = "hippostdpubwf:lastModificationDate";
+
+    private static final HCTPathInvalidatedCache<Fragment> CACHE = new HCTPathInvalidatedCache<Fragment>(
+            "rich text", "/content", Long.getLong("net.tirasa.hct.htmlCache.maxBytes", 16 * 1024 * 1024L)) {
+
+        @Override
+        protected long weigh(final Fragment value) {
+            return value.getBytes();
+        }
+    };
+
+    private HippoHtmlCache() {
+    }
+
+    private static long getLastModified(final Node node) throws RepositoryException {
+        for (Node current = node; current.getDepth() > 0; current = current.getParent()) {
+            if (current.hasProperty(LAST_MODIFIED)) {
+                return current.getProperty(LAST_MODIFIED).getDate().getTimeInMillis();
+            }
+            if (current.isNodeType(HippoNodeType.NT_HANDLE)) {
+                break;
+            }
+        }
+        return 0;
+    }
+
+    private static SAXBuffer parse(final HippoHtml rtf) throws SAXException, IOException {
+        final SAXBuffer buffer = new SAXBuffer();
+
+        final XMLReader xmlReader = new StartEndDocumentFilter(XMLUtils.createXMLReader(buffer));
+        xmlReader.setContentHandler(buffer);
+        xmlReader.parse(new InputSource(new StringReader(rtf.getContent())));
+
+        return buffer;
+    }
+
+    /**
+     * Sends the SAX events of the given rich text content to the given handler, parsing only if not already cached.
+     *
+     * @param rtf rich text
+     * @param contentHandler content handler
+     * @throws SAXException if parsing or sending fails
+     * @throws IOException if parsing fails
+     */
+    public static void toSAX(final HippoHtml rtf, final ContentHandler contentHandler)
+            throws SAXException, IOException {
+
+        String key = null;
+        try {
+            key = rtf.getNode().getIdentifier() + "|" + getLastModified(rtf.getNode());
+        } catch (RepositoryException e) {
+            LOG.error("While building cache key for {}, parsing without caching", rtf.getPath(), e);
+        }
+
+        Fragment fragment = key == null ? null : CACHE.get(key);
+        if (fragment == null) {
+            final long generation = CACHE.getGeneration();
+            fragment = new Fragment(parse(rtf), 4L * rtf.getContent().length());
+            if (key != null) {
+                CACHE.put(key, fragment, generation, rtf.getPath());
+            }
+        }
+
+        fragment.getBuffer().toSAX(contentHandler);
+    }
+
+    public static int size() {
+        return CACHE.size();
+    }
+
+    public static long getBytes() {
+        return CACHE.getWeight();
+    }
+
+    public static long getHits() {
+        return CACHE.getHits();
+    }
+
+    public static long getMisses() {
+        return CACHE.getMisses();
+    }
+
+    public static long getEvictions() {
+        return CACHE.getEvictions();
+    }
+
+    public static void clear() {
+        CACHE.clear();
+    }
+
+    private static class Fragment {
+
+        private final SAXBuffer buffer;
+
+        private final long bytes;
+
+        public Fragment(final SAXBuffer buffer, final long bytes) {
+            this.buffer = buffer;
+            this.bytes = bytes;
+        }
+
+        public SAXBuffer getBuffer() {
+            return buffer;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+    }
+}
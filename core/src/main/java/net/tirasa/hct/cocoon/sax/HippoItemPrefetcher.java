@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2012 Tirasa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.hct.cocoon.sax;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.jcr.RepositoryException;
+import net.tirasa.hct.repository.HCTConnManager;
+import net.tirasa.hct.util.ObjectUtils;
+import org.apache.cocoon.pipeline.ProcessingException;
+import org.apache.cocoon.sax.util.SAXConsumerAdapter;
+import org.apache.cocoon.xml.sax.SAXBuffer;
+import org.hippoecm.hst.content.beans.ObjectBeanManagerException;
+import org.hippoecm.hst.content.beans.standard.HippoItem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+
+/**
+ * Hydrates and dumps query result items ahead of emission, on a process-wide bounded pool of threads: each item is a
+ * separate task, borrowing a pooled session only while it runs. SAX events are buffered per item and sent downstream
+ * strictly in the order items were added; at most <tt>concurrency</tt> items are scheduled at any time.
+ * Items not yet started when due - because the pool is busy with other requests - or whose task could not obtain a
+ * session are dumped by the calling thread, with its own session.
+ * Can be tuned via the <tt>net.tirasa.hct.prefetch.threads</tt> (default 8) and
+ * <tt>net.tirasa.hct.prefetch.timeout</tt> (ms to wait for a running item, default 30000) system properties.
+ */
+public class HippoItemPrefetcher {
+
+    /**
+     * Dumps a single result item.
+     */
+    public interface ItemDumper {
+
+        void dump(HCTConnManager connManager, HippoItemXMLDumper dumper, HippoItem item)
+                throws SAXException, RepositoryException, IOException, ObjectBeanManagerException;
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(HippoItemPrefetcher.class);
+
+    private static final int THREADS = Integer.getInteger("net.tirasa.hct.prefetch.threads", 8);
+
+    private static final long TIMEOUT = Long.getLong("net.tirasa.hct.prefetch.timeout", 30000L);
+
+    private static final ThreadPoolExecutor EXECUTOR;
+
+    static {
+        EXECUTOR = new ThreadPoolExecutor(THREADS, THREADS, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(runnable, "hct-prefetch-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private final ContentHandler contentHandler;
+
+    private final HCTConnManager connManager;
+
+    private final int concurrency;
+
+    private final ItemDumper itemDumper;
+
+    /**
+     * Items not yet emitted, in order; accessed by the calling thread only.
+     */
+    private final LinkedList<Slot> window = new LinkedList<Slot>();
+
+    /**
+     * Paths of the repository items dumped by emitted items; accessed by the calling thread only.
+     */
+    private final Set<String> dependencies = new LinkedHashSet<String>();
+
+    private volatile boolean closed = false;
+
+    /**
+     * @param contentHandler where items are emitted
+     * @param connManager calling thread's connection, used for items dumped by the calling thread
+     * @param concurrency maximum number of items scheduled at any time
+     * @param itemDumper dumps each item
+     */
+    public HippoItemPrefetcher(final ContentHandler contentHandler, final HCTConnManager connManager,
+            final int concurrency, final ItemDumper itemDumper) {
+
+        this.contentHandler = contentHandler;
+        this.connManager = connManager;
+        this.concurrency = concurrency;
+        this.itemDumper = itemDumper;
+    }
+
+    /**
+     * @return maximum number of items that can be dumped in parallel
+     */
+    public static int getThreads() {
+        return THREADS;
+    }
+
+    public Set<String> getDependencies() {
+        return dependencies;
+    }
+
+    public static int getActiveWorkers() {
+        return EXECUTOR.getActiveCount();
+    }
+
+    public static int getQueuedWorkers() {
+        return EXECUTOR.getQueue().size();
+    }
+
+    /**
+     * Schedules the given item for hydration; emits the eldest item if the window is full.
+     *
+     * @param uuid result item UUID
+     * @throws SAXException if emission fails
+     */
+    public void add(final String uuid) throws SAXException {
+        if (closed) {
+            throw new IllegalStateException("Prefetcher already closed");
+        }
+
+        if (window.size() >= concurrency) {
+            emit(window.removeFirst());
+        }
+
+        final Slot slot = new Slot(uuid);
+        window.addLast(slot);
+        EXECUTOR.execute(slot);
+    }
+
+    /**
+     * Emits all remaining items.
+     *
+     * @throws SAXException if emission fails
+     */
+    public void finish() throws SAXException {
+        try {
+            while (!window.isEmpty()) {
+                emit(window.removeFirst());
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Discards any item not yet emitted, removing from the pool the ones not yet started; to be invoked also when
+     * emission is interrupted.
+     */
+    public void close() {
+        if (!closed) {
+            closed = true;
+            for (Slot slot : window) {
+                EXECUTOR.remove(slot);
+            }
+            window.clear();
+        }
+    }
+
+    private void emit(final Slot slot) throws SAXException {
+        if (slot.claim()) {
+            // not started yet: the pool is busy, do not wait for it
+            EXECUTOR.remove(slot);
+            slot.dump(connManager);
+        } else {
+            try {
+                if (!slot.await(TIMEOUT)) {
+                    throw new ProcessingException("Timed out after " + TIMEOUT + " ms waiting for " + slot.getUuid());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ProcessingException("Interrupted while waiting for " + slot.getUuid(), e);
+            }
+
+            if (slot.isWithoutSession()) {
+                LOG.debug("No session was available for {}, dumping on calling thread", slot.getUuid());
+                slot.dump(connManager);
+            }
+        }
+
+        if (slot.getError() instanceof SAXException) {
+            throw (SAXException) slot.getError();
+        }
+        if (slot.getError() != null) {
+            throw new ProcessingException("While dumping " + slot.getUuid(), slot.getError());
+        }
+        slot.getBuffer().toSAX(contentHandler);
+        dependencies.addAll(slot.getDependencies());
+    }
+
+    private class Slot implements Runnable {
+
+        private final String uuid;
+
+        private final AtomicBoolean started = new AtomicBoolean(false);
+
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        private SAXBuffer buffer;
+
+        private Set<String> dependencies;
+
+        private Exception error;
+
+        private boolean withoutSession;
+
+        public Slot(final String uuid) {
+            this.uuid = uuid;
+        }
+
+        public String getUuid() {
+            return uuid;
+        }
+
+        /**
+         * @return true if the caller is the first one to start this item
+         */
+        public boolean claim() {
+            return started.compareAndSet(false, true);
+        }
+
+        @Override
+        public void run() {
+            if (!claim()) {
+                return;
+            }
+            if (closed) {
+                done(null, Collections.<String>emptySet(), null);
+                return;
+            }
+
+            final HCTConnManager taskConnManager;
+            try {
+                taskConnManager = HCTConnManager.getContentInstance();
+            } catch (Exception e) {
+                LOG.debug("While obtaining session for prefetch", e);
+                withoutSession = true;
+                done(null, Collections.<String>emptySet(), null);
+                return;
+            }
+
+            try {
+                dump(taskConnManager);
+            } finally {
+                taskConnManager.logout();
+            }
+        }
+
+        public void dump(final HCTConnManager itemConnManager) {
+            try {
+                final SAXBuffer itemBuffer = new SAXBuffer();
+                final SAXConsumerAdapter adapter = new SAXConsumerAdapter();
+                adapter.setContentHandler(itemBuffer);
+                final HippoItemXMLDumper dumper = new HippoItemXMLDumper(adapter);
+
+                final HippoItem item = ObjectUtils.getHippoItemByUuid(itemConnManager, uuid);
+                if (item != null) {
+                    itemDumper.dump(itemConnManager, dumper, item);
+                }
+                withoutSession = false;
+                done(itemBuffer, dumper.getDependencies(), null);
+            } catch (Exception e) {
+                withoutSession = false;
+                done(null, Collections.<String>emptySet(), e);
+            }
+        }
+
+        private void done(final SAXBuffer buffer, final Set<String> dependencies, final Exception error) {
+            this.buffer = buffer;
+            this.dependencies = dependencies;
+            this.error = error;
+            latch.countDown();
+        }
+
+        public boolean await(final long timeout) throws InterruptedException {
+            return latch.await(timeout, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * @return whether the task ran but could not obtain a session, so that the item is still to be dumped
+         */
+        public boolean isWithoutSession() {
+            return withoutSession;
+        }
+
+        public SAXBuffer getBuffer() {
+            return buffer;
+        }
+
+        public Set<String> getDependencies() {
+            return dependencies;
+        }
+
+        public Exception getError() {
+            return error;
+        }
+    }
+}
@@ -18,16 +18,15 @@ package net.tirasa.hct.cocoon.sax;
 import static net.tirasa.hct.cocoon.sax.Constants.*;
 
 import java.io.IOException;
-import java.io.StringReader;
-import java.text.SimpleDateFormat;
 import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map.Entry;
-import javax.jcr.Node;
+import java.util.Set;
 import javax.jcr.RepositoryException;
 import net.tirasa.hct.hstbeans.HCTTaxonomyCategoryBean;
 import net.tirasa.hct.hstbeans.HippoCompoundDocument;
@@ -40,9 +39,10 @@ import net.tirasa.hct.repository.HCTQueryResult;
 import net.tirasa.hct.util.ObjectUtils;
 import net.tirasa.hct.util.TaxonomyUtils;
 import org.apache.cocoon.sax.SAXConsumer;
-import org.apache.cocoon.sax.util.XMLUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.time.FastDateFormat;
 import org.hippoecm.hst.content.beans.ObjectBeanManagerException;
+import org.hippoecm.hst.content.beans.standard.HippoBean;
 import org.hippoecm.hst.content.beans.standard.HippoAsset;
 import org.hippoecm.hst.content.beans.standard.HippoDocument;
 import org.hippoecm.hst.content.beans.standard.HippoFacetSelect;
@@ -55,35 +55,79 @@ import org.onehippo.forge.ecmtagging.Tag;
 import org.onehippo.forge.ecmtagging.TagCollection;
 import org.onehippo.forge.ecmtagging.TaggingNodeType;
 import org.onehippo.taxonomy.api.TaxonomyNodeTypes;
-import org.xml.sax.InputSource;
+import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
-import org.xml.sax.XMLReader;
 import org.xml.sax.helpers.AttributesImpl;
 
 public class HippoItemXMLDumper {
 
     final private transient SAXConsumer saxConsumer;
 
+    /**
+     * Attributes buffer, cleared and reused for each element: SAX consumers are not allowed to keep references.
+     */
+    final private transient AttributesImpl attrs = new AttributesImpl();
+
+    /**
+     * Characters buffer, grown when needed and reused for each text node.
+     */
+    private transient char[] chars = new char[256];
+
+    /**
+     * Paths of the repository items dumped so far: any change there affects the output.
+     */
+    final private transient Set<String> dependencies = new LinkedHashSet<String>();
+
     public HippoItemXMLDumper(final SAXConsumer saxConsumer) {
         this.saxConsumer = saxConsumer;
     }
 
+    public Set<String> getDependencies() {
+        return dependencies;
+    }
+
+    private void clearAttrs() {
+        attrs.clear();
+    }
+
+    private void addAttr(final Attribute attribute, final String type, final String value) {
+        attrs.addAttribute(NS_EMPTY, attribute.getName(), attribute.getName(), type, value);
+    }
+
+    private void startElement(final Element element, final Attributes atts) throws SAXException {
+        saxConsumer.startElement(NS_HCT, element.getName(), element.getQName(), atts);
+    }
+
+    private void endElement(final Element element) throws SAXException {
+        saxConsumer.endElement(NS_HCT, element.getName(), element.getQName());
+    }
+
+    private void characters(final String value) throws SAXException {
+        final int length = value.length();
+        if (chars.length < length) {
+            chars = new char[Math.max(length, chars.length * 2)];
+        }
+        value.getChars(0, length, chars, 0);
+        saxConsumer.characters(chars, 0, length);
+    }
+
+    private void dumpValue(final String value) throws SAXException {
+        startElement(Element.VALUE, EMPTY_ATTRS);
+        characters(value);
+        endElement(Element.VALUE);
+    }
+
     public void startQueryResult(final HCTQueryResult result, final HippoItem base)
             throws SAXException, RepositoryException {
 
-        final AttributesImpl attrs = new AttributesImpl();
-        attrs.addAttribute(NS_EMPTY, Attribute.SIZE.getName(),
-                Attribute.SIZE.getName(), XSD_LONG, String.valueOf(result.getUuids().size()));
-        attrs.addAttribute(NS_EMPTY, Attribute.PAGE.getName(),
-                Attribute.PAGE.getName(), XSD_LONG, String.valueOf(result.getPage()));
-        attrs.addAttribute(NS_EMPTY, Attribute.TOTAL_PAGES.getName(),
-                Attribute.TOTAL_PAGES.getName(), XSD_LONG, String.valueOf(result.getTotalPages()));
+        clearAttrs();
+        addAttr(Attribute.SIZE, XSD_LONG, String.valueOf(result.getSize()));
+        addAttr(Attribute.PAGE, XSD_LONG, String.valueOf(result.getPage()));
+        addAttr(Attribute.TOTAL_PAGES, XSD_LONG, String.valueOf(result.getTotalPages()));
 
-        saxConsumer.startElement(NS_HCT, Element.QUERY_RESULT.getName(),
-                PREFIX_HCT + ":" + Element.QUERY_RESULT.getName(), attrs);
+        startElement(Element.QUERY_RESULT, attrs);
 
-        saxConsumer.startElement(NS_HCT, Element.BASE.getName(),
-                PREFIX_HCT + ":" + Element.BASE.getName(), EMPTY_ATTRS);
+        startElement(Element.BASE, EMPTY_ATTRS);
         if (base != null) {
             if (base instanceof HCTTaxonomyCategoryBean) {
                 startTaxonomy((HCTTaxonomyCategoryBean) base, result.getLocale());
@@ -93,12 +137,11 @@ public class HippoItemXMLDumper {
                 endHippoItem(base);
             }
         }
-        saxConsumer.endElement(NS_HCT, Element.BASE.getName(), PREFIX_HCT + ":" + Element.BASE.getName());
+        endElement(Element.BASE);
     }
 
     public void endQueryResult() throws SAXException {
-        saxConsumer.endElement(NS_HCT, Element.QUERY_RESULT.getName(),
-                PREFIX_HCT + ":" + Element.QUERY_RESULT.getName());
+        endElement(Element.QUERY_RESULT);
     }
 
     public <T extends HippoItem> void startHippoItem(final T item, final String path)
@@ -113,69 +156,52 @@ public class HippoItemXMLDumper {
                 ? ((HippoFolder) item).getLocaleString()
                 : "";
 
-        AttributesImpl attrs = new AttributesImpl();
-        attrs.addAttribute(NS_EMPTY, Attribute.NAME.getName(),
-                Attribute.NAME.getName(), XSD_STRING, item.getName());
-        attrs.addAttribute(NS_EMPTY, Attribute.TYPE.getName(),
-                Attribute.TYPE.getName(), XSD_STRING, item.getNode().getPrimaryNodeType().getName());
-        attrs.addAttribute(NS_EMPTY, Attribute.PATH.getName(),
-                Attribute.PATH.getName(), XSD_STRING, path);
-        attrs.addAttribute(NS_EMPTY, Attribute.LOC_NAME.getName(),
-                Attribute.LOC_NAME.getName(), XSD_STRING, item.getLocalizedName());
-        attrs.addAttribute(NS_EMPTY, Attribute.LOCALE.getName(),
-                Attribute.LOCALE.getName(), XSD_STRING, localeString);
+        dependencies.add(item.getPath());
+
+        clearAttrs();
+        addAttr(Attribute.NAME, XSD_STRING, item.getName());
+        addAttr(Attribute.TYPE, XSD_STRING, item.getNode().getPrimaryNodeType().getName());
+        addAttr(Attribute.PATH, XSD_STRING, path);
+        addAttr(Attribute.LOC_NAME, XSD_STRING, item.getLocalizedName());
+        addAttr(Attribute.LOCALE, XSD_STRING, localeString);
 
         // 0. the item
-        saxConsumer.startElement(NS_HCT, elem.getName(), PREFIX_HCT + ":" + elem.getName(), attrs);
+        startElement(elem, attrs);
 
         // 1. translations
-        saxConsumer.startElement(NS_HCT, Element.TRANSLATIONS.getName(),
-                PREFIX_HCT + ":" + Element.TRANSLATIONS.getName(), EMPTY_ATTRS);
+        startElement(Element.TRANSLATIONS, EMPTY_ATTRS);
         for (String locale : item.getAvailableTranslations().getAvailableLocales()) {
             if (!localeString.equals(locale)) {
-                attrs = new AttributesImpl();
-                attrs.addAttribute(NS_EMPTY, Attribute.LOCALE.getName(),
-                        Attribute.LOCALE.getName(), XSD_STRING, locale);
-                attrs.addAttribute(NS_EMPTY, Attribute.PATH.getName(),
-                        Attribute.PATH.getName(), XSD_STRING,
-                        item.getAvailableTranslations().getTranslation(locale).getCanonicalBean().getPath());
-                attrs.addAttribute(NS_EMPTY, Attribute.NAME.getName(),
-                        Attribute.NAME.getName(), XSD_STRING,
-                        item.getAvailableTranslations().getTranslation(locale).getCanonicalBean().getName());
-                attrs.addAttribute(NS_EMPTY, Attribute.LOC_NAME.getName(),
-                        Attribute.LOC_NAME.getName(), XSD_STRING,
-                        item.getAvailableTranslations().getTranslation(locale).getCanonicalBean().getLocalizedName());
-
-                saxConsumer.startElement(NS_HCT, Element.TRANSLATION.getName(),
-                        PREFIX_HCT + ":" + Element.TRANSLATION.getName(), attrs);
+                final HippoBean translation = item.getAvailableTranslations().getTranslation(locale).
+                        getCanonicalBean();
+                dependencies.add(translation.getPath());
+
+                clearAttrs();
+                addAttr(Attribute.LOCALE, XSD_STRING, locale);
+                addAttr(Attribute.PATH, XSD_STRING, translation.getPath());
+                addAttr(Attribute.NAME, XSD_STRING, translation.getName());
+                addAttr(Attribute.LOC_NAME, XSD_STRING, translation.getLocalizedName());
+
+                startElement(Element.TRANSLATION, attrs);
 
                 if (item instanceof HippoDocument) {
-                    attrs = new AttributesImpl();
-                    attrs.addAttribute(NS_EMPTY, Attribute.NAME.getName(),
-                            Attribute.NAME.getName(), XSD_STRING, "hippo:availability");
-                    saxConsumer.startElement(NS_HCT, Element.FIELD.getName(),
-                            PREFIX_HCT + ":" + Element.FIELD.getName(), attrs);
+                    clearAttrs();
+                    addAttr(Attribute.NAME, XSD_STRING, "hippo:availability");
+                    startElement(Element.FIELD, attrs);
 
                     for (String value : (String[]) item.getAvailableTranslations().getTranslation(locale).
                             getProperty("hippo:availability")) {
 
-                        saxConsumer.startElement(NS_HCT, Element.VALUE.getName(),
-                                PREFIX_HCT + ":" + Element.VALUE.getName(), EMPTY_ATTRS);
-                        saxConsumer.characters(value.toCharArray(), 0, value.length());
-                        saxConsumer.endElement(NS_HCT, Element.VALUE.getName(),
-                                PREFIX_HCT + ":" + Element.VALUE.getName());
+                        dumpValue(value);
                     }
 
-                    saxConsumer.endElement(NS_HCT, Element.FIELD.getName(),
-                            PREFIX_HCT + ":" + Element.FIELD.getName());
+                    endElement(Element.FIELD);
                 }
 
-                saxConsumer.endElement(NS_HCT, Element.TRANSLATION.getName(),
-                        PREFIX_HCT + ":" + Element.TRANSLATION.getName());
+                endElement(Element.TRANSLATION);
             }
         }
-        saxConsumer.endElement(NS_HCT, Element.TRANSLATIONS.getName(),
-                PREFIX_HCT + ":" + Element.TRANSLATIONS.getName());
+        endElement(Element.TRANSLATIONS);
     }
 
     public void endHippoItem(final HippoItem item)
@@ -183,263 +209,204 @@ public class HippoItemXMLDumper {
 
         final Element elem = item instanceof HippoDocument
                 ? Element.DOCUMENT : Element.FOLDER;
-        saxConsumer.endElement(NS_HCT, elem.getName(), PREFIX_HCT + ":" + elem.getName());
+        endElement(elem);
     }
 
     public void startHippoCompounds()
             throws SAXException, RepositoryException {
 
-        saxConsumer.startElement(NS_HCT, Element.COMPOUNDS.getName(),
-                PREFIX_HCT + ":" + Element.COMPOUNDS.getName(), EMPTY_ATTRS);
+        startElement(Element.COMPOUNDS, EMPTY_ATTRS);
     }
 
     public void endHippoCompounds()
             throws SAXException {
 
-        saxConsumer.endElement(NS_HCT, Element.COMPOUNDS.getName(), PREFIX_HCT + ":" + Element.COMPOUNDS.getName());
+        endElement(Element.COMPOUNDS);
     }
 
     public void startHippoCompound(final HippoDocument compound)
             throws SAXException, RepositoryException {
 
-        final AttributesImpl attrs = new AttributesImpl();
-        attrs.addAttribute(NS_EMPTY, Attribute.NAME.getName(),
-                Attribute.NAME.getName(), XSD_STRING, compound.getName());
-        attrs.addAttribute(NS_EMPTY, Attribute.TYPE.getName(),
-                Attribute.TYPE.getName(), XSD_STRING, compound.getNode().getPrimaryNodeType().getName());
-        attrs.addAttribute(NS_EMPTY, Attribute.PATH.getName(),
-                Attribute.PATH.getName(), XSD_STRING, compound.getPath());
+        clearAttrs();
+        addAttr(Attribute.NAME, XSD_STRING, compound.getName());
+        addAttr(Attribute.TYPE, XSD_STRING, compound.getNode().getPrimaryNodeType().getName());
+        addAttr(Attribute.PATH, XSD_STRING, compound.getPath());
 
-        saxConsumer.startElement(NS_HCT, Element.COMPOUND.getName(),
-                PREFIX_HCT + ":" + Element.COMPOUND.getName(), attrs);
+        startElement(Element.COMPOUND, attrs);
     }
 
     public void endHippoCompound(final HippoDocument compound)
             throws SAXException {
 
-        saxConsumer.endElement(NS_HCT, Element.COMPOUND.getName(), PREFIX_HCT + ":" + Element.COMPOUND.getName());
+        endElement(Element.COMPOUND);
     }
     
-    public void dumpAssets(final List<HippoAsset> assets, final String elementName, final boolean wrap,
+    public void dumpAssets(final List<HippoAsset> assets, final Element element, final boolean wrap,
             final String dateFormat, final Locale locale)
             throws SAXException {
 
         if (wrap) {
-            saxConsumer.startElement(NS_HCT, Element.ASSETS.getName(),
-                    PREFIX_HCT + ":" + Element.ASSETS.getName(), EMPTY_ATTRS);
+            startElement(Element.ASSETS, EMPTY_ATTRS);
         }
 
-        final SimpleDateFormat sdf = new SimpleDateFormat(dateFormat, locale);
+        final FastDateFormat format = FastDateFormat.getInstance(dateFormat, locale);
         for (HippoAsset asset : assets) {
-            final AttributesImpl attrs = new AttributesImpl();
-            attrs.addAttribute(NS_EMPTY, Attribute.NAME.getName(),
-                    Attribute.NAME.getName(), XSD_STRING, asset.getName());
+            dependencies.add(asset.getParentBean().getPath());
+
+            clearAttrs();
+            addAttr(Attribute.NAME, XSD_STRING, asset.getName());
             if (asset.getParentBean().getChildBeans("hippo:translation") != null
                     && !asset.getParentBean().getChildBeans("hippo:translation").isEmpty()) {
-                attrs.addAttribute(NS_EMPTY, Attribute.LOC_NAME.getName(),
-                        Attribute.LOC_NAME.getName(), XSD_STRING,
+                addAttr(Attribute.LOC_NAME, XSD_STRING,
                         ((HippoItem) asset.getParentBean().getChildBeans("hippo:translation").get(0)).
                         getProperty("hippo:message", asset.getName()).toString());
             } else {
-                attrs.addAttribute(NS_EMPTY, Attribute.LOC_NAME.getName(),
-                        Attribute.LOC_NAME.getName(), XSD_STRING, asset.getName());
+                addAttr(Attribute.LOC_NAME, XSD_STRING, asset.getName());
             }
-            attrs.addAttribute(NS_EMPTY, Attribute.PATH.getName(),
-                    Attribute.PATH.getName(), XSD_STRING, asset.getPath());
-            attrs.addAttribute(NS_EMPTY, Attribute.MIMETYPE.getName(),
-                    Attribute.MIMETYPE.getName(), XSD_STRING, asset.getAsset().getMimeType());
-            attrs.addAttribute(NS_EMPTY, Attribute.SIZE_KB.getName(),
-                    Attribute.SIZE_KB.getName(), XSD_INT, String.valueOf(asset.getAsset().getLengthKB()));
-            attrs.addAttribute(NS_EMPTY, Attribute.LAST_MOD.getName(),
-                    Attribute.LAST_MOD.getName(), XSD_DATETIME, sdf.format(asset.getAsset().
-                            getLastModified().getTime()));
-
-            saxConsumer.startElement(NS_HCT, elementName, PREFIX_HCT + ":" + elementName, attrs);
-            saxConsumer.endElement(NS_HCT, elementName, PREFIX_HCT + ":" + elementName);
+            addAttr(Attribute.PATH, XSD_STRING, asset.getPath());
+            addAttr(Attribute.MIMETYPE, XSD_STRING, asset.getAsset().getMimeType());
+            addAttr(Attribute.SIZE_KB, XSD_INT, String.valueOf(asset.getAsset().getLengthKB()));
+            addAttr(Attribute.LAST_MOD, XSD_DATETIME, format.format(asset.getAsset().getLastModified().getTime()));
+
+            startElement(element, attrs);
+            endElement(element);
         }
 
         if (wrap) {
-            saxConsumer.endElement(NS_HCT, Element.ASSETS.getName(),
-                    PREFIX_HCT + ":" + Element.ASSETS.getName());
+            endElement(Element.ASSETS);
         }
     }
 
-    public void dumpImages(final List<HippoGalleryImageSet> images, final String elementName, final boolean wrap)
+    public void dumpImages(final List<HippoGalleryImageSet> images, final Element element, final boolean wrap)
             throws SAXException, ObjectBeanManagerException {
 
         if (wrap) {
-            saxConsumer.startElement(NS_HCT, Element.IMAGES.getName(),
-                    PREFIX_HCT + ":" + Element.IMAGES.getName(), EMPTY_ATTRS);
+            startElement(Element.IMAGES, EMPTY_ATTRS);
         }
 
         for (HippoGalleryImageSet img : images) {
-            final AttributesImpl attrs = new AttributesImpl();
-            attrs.addAttribute(NS_EMPTY, Attribute.PATH.getName(),
-                    Attribute.PATH.getName(), XSD_STRING, img.getPath());
-            attrs.addAttribute(NS_EMPTY, Attribute.NAME.getName(),
-                    Attribute.NAME.getName(), XSD_STRING, img.getName());
+            dependencies.add(img.getPath());
+
+            clearAttrs();
+            addAttr(Attribute.PATH, XSD_STRING, img.getPath());
+            addAttr(Attribute.NAME, XSD_STRING, img.getName());
             if (StringUtils.isNotBlank(img.getDescription())) {
-                attrs.addAttribute(NS_EMPTY, Attribute.DESC.getName(),
-                        Attribute.DESC.getName(), XSD_STRING, img.getDescription());
+                addAttr(Attribute.DESC, XSD_STRING, img.getDescription());
             }
-            attrs.addAttribute(NS_EMPTY, Attribute.HEIGHT.getName(),
-                    Attribute.HEIGHT.getName(), XSD_INT, String.valueOf(img.getOriginal().getHeight()));
-            attrs.addAttribute(NS_EMPTY, Attribute.WIDTH.getName(),
-                    Attribute.WIDTH.getName(), XSD_INT, String.valueOf(img.getOriginal().getWidth()));
+            addAttr(Attribute.HEIGHT, XSD_INT, String.valueOf(img.getOriginal().getHeight()));
+            addAttr(Attribute.WIDTH, XSD_INT, String.valueOf(img.getOriginal().getWidth()));
 
-            saxConsumer.startElement(NS_HCT, elementName, PREFIX_HCT + ":" + elementName, attrs);
-            saxConsumer.endElement(NS_HCT, elementName, PREFIX_HCT + ":" + elementName);
+            startElement(element, attrs);
+            endElement(element);
         }
 
         if (wrap) {
-            saxConsumer.endElement(NS_HCT, Element.IMAGES.getName(),
-                    PREFIX_HCT + ":" + Element.IMAGES.getName());
+            endElement(Element.IMAGES);
         }
     }
 
-    public void dumpRelatedDocs(final List<HippoDocument> relDocs, final String elementName, final boolean wrap)
+    public void dumpRelatedDocs(final List<HippoDocument> relDocs, final Element element, final boolean wrap)
             throws SAXException, ObjectBeanManagerException {
 
         if (wrap) {
-            saxConsumer.startElement(NS_HCT, Element.RELATED_DOCS.getName(),
-                    PREFIX_HCT + ":" + Element.RELATED_DOCS.getName(), EMPTY_ATTRS);
+            startElement(Element.RELATED_DOCS, EMPTY_ATTRS);
         }
 
-        AttributesImpl attrs;
         for (HippoDocument relDoc : relDocs) {
-            attrs = new AttributesImpl();
-            attrs.addAttribute(NS_EMPTY, Attribute.NAME.getName(),
-                    Attribute.NAME.getName(), XSD_STRING, relDoc.getName());
-            attrs.addAttribute(NS_EMPTY, Attribute.PATH.getName(),
-                    Attribute.PATH.getName(), XSD_STRING, relDoc.getPath());
-            attrs.addAttribute(NS_EMPTY, Attribute.LOC_NAME.getName(),
-                    Attribute.LOC_NAME.getName(), XSD_STRING, relDoc.getLocalizedName());
-            attrs.addAttribute(NS_EMPTY, Attribute.LOCALE.getName(),
-                    Attribute.LOCALE.getName(), XSD_STRING, relDoc.getLocalizedName());
-
-            saxConsumer.startElement(NS_HCT, elementName, PREFIX_HCT + ":" + elementName, attrs);
-            saxConsumer.endElement(NS_HCT, elementName, PREFIX_HCT + ":" + elementName);
+            dependencies.add(relDoc.getPath());
+
+            clearAttrs();
+            addAttr(Attribute.NAME, XSD_STRING, relDoc.getName());
+            addAttr(Attribute.PATH, XSD_STRING, relDoc.getPath());
+            addAttr(Attribute.LOC_NAME, XSD_STRING, relDoc.getLocalizedName());
+            addAttr(Attribute.LOCALE, XSD_STRING, relDoc.getLocalizedName());
+
+            startElement(element, attrs);
+            endElement(element);
         }
 
         if (wrap) {
-            saxConsumer.endElement(NS_HCT, Element.RELATED_DOCS.getName(),
-                    PREFIX_HCT + ":" + Element.RELATED_DOCS.getName());
+            endElement(Element.RELATED_DOCS);
         }
     }
 
     public void dumpTags(final TagCollection tags) throws SAXException {
-        saxConsumer.startElement(NS_HCT, Element.TAGS.getName(),
-                PREFIX_HCT + ":" + Element.TAGS.getName(), EMPTY_ATTRS);
+        startElement(Element.TAGS, EMPTY_ATTRS);
 
         for (Tag tag : tags.values()) {
-            final AttributesImpl attrs = new AttributesImpl();
-            attrs.addAttribute(NS_EMPTY, Attribute.SCORE.getName(),
-                    Attribute.SCORE.getName(), XSD_DOUBLE, String.valueOf(tag.getScore()));
-
-            saxConsumer.startElement(NS_HCT, Element.TAG.getName(),
-                    PREFIX_HCT + ":" + Element.TAG.getName(), attrs);
-            saxConsumer.characters(tag.getName().toCharArray(), 0, tag.getName().length());
-            saxConsumer.endElement(NS_HCT, Element.TAG.getName(),
-                    PREFIX_HCT + ":" + Element.TAG.getName());
+            clearAttrs();
+            addAttr(Attribute.SCORE, XSD_DOUBLE, String.valueOf(tag.getScore()));
+
+            startElement(Element.TAG, attrs);
+            characters(tag.getName());
+            endElement(Element.TAG);
         }
 
-        saxConsumer.endElement(NS_HCT, Element.TAGS.getName(),
-                PREFIX_HCT + ":" + Element.TAGS.getName());
+        endElement(Element.TAGS);
     }
 
     public void dumpTags(final String[] tags) throws SAXException {
-        saxConsumer.startElement(NS_HCT, Element.TAGS.getName(),
-                PREFIX_HCT + ":" + Element.TAGS.getName(), EMPTY_ATTRS);
+        startElement(Element.TAGS, EMPTY_ATTRS);
 
         for (int i = 0; tags != null && i < tags.length; i++) {
-            saxConsumer.startElement(NS_HCT, Element.TAG.getName(),
-                    PREFIX_HCT + ":" + Element.TAG.getName(), EMPTY_ATTRS);
-            saxConsumer.characters(tags[i].toCharArray(), 0, tags[i].length());
-            saxConsumer.endElement(NS_HCT, Element.TAG.getName(),
-                    PREFIX_HCT + ":" + Element.TAG.getName());
+            startElement(Element.TAG, EMPTY_ATTRS);
+            characters(tags[i]);
+            endElement(Element.TAG);
         }
 
-        saxConsumer.endElement(NS_HCT, Element.TAGS.getName(),
-                PREFIX_HCT + ":" + Element.TAGS.getName());
+        endElement(Element.TAGS);
     }
 
     public void startTaxonomy(final HCTTaxonomyCategoryBean taxonomy, final Locale locale) throws SAXException {
-        final AttributesImpl attrs = new AttributesImpl();
-        attrs.addAttribute(NS_EMPTY, Attribute.NAME.getName(),
-                Attribute.NAME.getName(), XSD_STRING, taxonomy.getKey());
-        attrs.addAttribute(NS_EMPTY, Attribute.LOC_NAME.getName(),
-                Attribute.LOC_NAME.getName(), XSD_STRING, taxonomy.getLocalizedName(locale.getLanguage()));
-        attrs.addAttribute(NS_EMPTY, Attribute.ORDER.getName(),
-                Attribute.ORDER.getName(), XSD_STRING, taxonomy.getOrder(locale.getLanguage()));
-        attrs.addAttribute(NS_EMPTY, Attribute.PATH.getName(),
-                Attribute.PATH.getName(), XSD_STRING, taxonomy.getPath());
-
-        saxConsumer.startElement(NS_HCT, Element.TAXONOMY.getName(),
-                PREFIX_HCT + ":" + Element.TAXONOMY.getName(), attrs);
+        dependencies.add(taxonomy.getPath());
+
+        clearAttrs();
+        addAttr(Attribute.NAME, XSD_STRING, taxonomy.getKey());
+        addAttr(Attribute.LOC_NAME, XSD_STRING, taxonomy.getLocalizedName(locale.getLanguage()));
+        addAttr(Attribute.ORDER, XSD_STRING, taxonomy.getOrder(locale.getLanguage()));
+        addAttr(Attribute.PATH, XSD_STRING, taxonomy.getPath());
+
+        startElement(Element.TAXONOMY, attrs);
     }
 
     public void endTaxonomy() throws SAXException {
-        saxConsumer.endElement(NS_HCT, Element.TAXONOMY.getName(),
-                PREFIX_HCT + ":" + Element.TAXONOMY.getName());
+        endElement(Element.TAXONOMY);
     }
 
     public void dumpTaxonomies(final List<HCTTaxonomyCategoryBean> taxonomies, final Locale locale)
             throws SAXException {
 
-        saxConsumer.startElement(NS_HCT, Element.TAXONOMIES.getName(),
-                PREFIX_HCT + ":" + Element.TAXONOMIES.getName(), EMPTY_ATTRS);
+        startElement(Element.TAXONOMIES, EMPTY_ATTRS);
 
         for (HCTTaxonomyCategoryBean taxonomy : taxonomies) {
             startTaxonomy(taxonomy, locale);
             endTaxonomy();
         }
 
-        saxConsumer.endElement(NS_HCT, Element.TAXONOMIES.getName(),
-                PREFIX_HCT + ":" + Element.TAXONOMIES.getName());
+        endElement(Element.TAXONOMIES);
     }
 
     public void dumpField(final Entry<String, Object> entry, final String dateFormat, final Locale locale)
             throws SAXException {
 
-        final AttributesImpl attrs = new AttributesImpl();
-        attrs.addAttribute(NS_EMPTY, Attribute.NAME.getName(), Attribute.NAME.getName(), XSD_STRING, entry.getKey());
-        saxConsumer.startElement(NS_HCT, Element.FIELD.getName(), PREFIX_HCT + ":" + Element.FIELD.getName(), attrs);
+        clearAttrs();
+        addAttr(Attribute.NAME, XSD_STRING, entry.getKey());
+        startElement(Element.FIELD, attrs);
 
         if (entry.getValue() instanceof String) {
-            saxConsumer.startElement(NS_HCT, Element.VALUE.getName(),
-                    PREFIX_HCT + ":" + Element.VALUE.getName(), EMPTY_ATTRS);
-            saxConsumer.characters(((String) entry.getValue()).toCharArray(),
-                    0, ((String) entry.getValue()).length());
-            saxConsumer.endElement(NS_HCT, Element.VALUE.getName(),
-                    PREFIX_HCT + ":" + Element.VALUE.getName());
+            dumpValue((String) entry.getValue());
         } else if (entry.getValue() instanceof Boolean) {
-            saxConsumer.startElement(NS_HCT, Element.VALUE.getName(),
-                    PREFIX_HCT + ":" + Element.VALUE.getName(), EMPTY_ATTRS);
-            saxConsumer.characters(((Boolean) entry.getValue()).toString().toCharArray(),
-                    0, ((Boolean) entry.getValue()).toString().length());
-            saxConsumer.endElement(NS_HCT, Element.VALUE.getName(),
-                    PREFIX_HCT + ":" + Element.VALUE.getName());
+            dumpValue(((Boolean) entry.getValue()).toString());
         } else if (entry.getValue() instanceof GregorianCalendar) {
-            final SimpleDateFormat sdf = new SimpleDateFormat(dateFormat, locale);
-            final String date = sdf.format(((GregorianCalendar) entry.getValue()).getTime());
-
-            saxConsumer.startElement(NS_HCT, Element.VALUE.getName(),
-                    PREFIX_HCT + ":" + Element.VALUE.getName(), EMPTY_ATTRS);
-            saxConsumer.characters(date.toCharArray(), 0, date.length());
-            saxConsumer.endElement(NS_HCT, Element.VALUE.getName(),
-                    PREFIX_HCT + ":" + Element.VALUE.getName());
+            dumpValue(FastDateFormat.getInstance(dateFormat, locale).
+                    format(((GregorianCalendar) entry.getValue()).getTime()));
         } else if (entry.getValue() instanceof String[]) {
-            for (int i = 0; i < ((String[]) entry.getValue()).length; i++) {
-                saxConsumer.startElement(NS_HCT, Element.VALUE.getName(),
-                        PREFIX_HCT + ":" + Element.VALUE.getName(), EMPTY_ATTRS);
-                saxConsumer.characters(((String[]) entry.getValue())[i].toCharArray(),
-                        0, ((String[]) entry.getValue())[i].length());
-                saxConsumer.endElement(NS_HCT, Element.VALUE.getName(),
-                        PREFIX_HCT + ":" + Element.VALUE.getName());
+            for (String value : (String[]) entry.getValue()) {
+                dumpValue(value);
             }
         }
 
-        saxConsumer.endElement(NS_HCT, Element.FIELD.getName(), PREFIX_HCT + ":" + Element.FIELD.getName());
+        endElement(Element.FIELD);
     }
 
     public void dumpDate(final String name, final Calendar calendar, final String dateFormat, final Locale locale)
@@ -448,22 +415,27 @@ public class HippoItemXMLDumper {
         dumpField(new SimpleEntry<String, Object>(name, calendar), dateFormat, locale);
     }
 
-    public void dumpHtml(final HCTConnManager connManager, final HippoHtml rtf, final XMLReader xmlReader,
+    public void dumpHtml(final HCTConnManager connManager, final HippoHtml rtf,
             final String dateFormat, final Locale locale)
             throws SAXException, IOException, ObjectBeanManagerException {
 
-        final AttributesImpl attrs = new AttributesImpl();
-        attrs.addAttribute(NS_EMPTY, Attribute.NAME.getName(), Attribute.NAME.getName(), XSD_STRING, rtf.getName());
-        saxConsumer.startElement(NS_HCT, Element.FIELD.getName(), PREFIX_HCT + ":" + Element.FIELD.getName(), attrs);
+        dependencies.add(rtf.getPath());
+
+        clearAttrs();
+        addAttr(Attribute.NAME, XSD_STRING, rtf.getName());
+        startElement(Element.FIELD, attrs);
+
+        HippoHtmlCache.toSAX(rtf, saxConsumer);
 
-        xmlReader.parse(new InputSource(new StringReader(rtf.getContent())));
+        final List<String> linkUuids = new ArrayList<String>();
+        for (HippoFacetSelect facetSelect : rtf.getChildBeans(HippoFacetSelect.class)) {
+            linkUuids.add((String) facetSelect.getProperty(HippoNodeType.HIPPO_DOCBASE));
+        }
 
         final List<HippoGalleryImageSet> images = new ArrayList<HippoGalleryImageSet>();
         final List<HippoAsset> assets = new ArrayList<HippoAsset>();
         final List<HippoDocument> docs = new ArrayList<HippoDocument>();
-        for (HippoFacetSelect facetSelect : rtf.getChildBeans(HippoFacetSelect.class)) {
-            final HippoItem subElement = ObjectUtils.getHippoItemByUuid(connManager,
-                    (String) facetSelect.getProperty(HippoNodeType.HIPPO_DOCBASE));
+        for (HippoItem subElement : ObjectUtils.getHippoItemsByUuids(connManager, linkUuids)) {
             if (subElement instanceof HippoGalleryImageSet) {
                 images.add((HippoGalleryImageSet) subElement);
             }
@@ -473,23 +445,19 @@ public class HippoItemXMLDumper {
                 docs.add((HippoDocument) subElement);
             }
         }
-        saxConsumer.startElement(NS_HCT, Element.LINKS.getName(),
-                PREFIX_HCT + ":" + Element.LINKS.getName(), EMPTY_ATTRS);
-        dumpImages(images, Element.LINK.getName(), false);
-        dumpAssets(assets, Element.LINK.getName(), false, dateFormat, locale);
-        dumpRelatedDocs(docs, Element.LINK.getName(), false);
-        saxConsumer.endElement(NS_HCT, Element.LINKS.getName(), PREFIX_HCT + ":" + Element.LINKS.getName());
-
-        saxConsumer.endElement(NS_HCT, Element.FIELD.getName(), PREFIX_HCT + ":" + Element.FIELD.getName());
+        startElement(Element.LINKS, EMPTY_ATTRS);
+        dumpImages(images, Element.LINK, false);
+        dumpAssets(assets, Element.LINK, false, dateFormat, locale);
+        dumpRelatedDocs(docs, Element.LINK, false);
+        endElement(Element.LINKS);
+
+        endElement(Element.FIELD);
     }
 
     public void dumpHippoItem(final HCTConnManager connManager, final HippoItem item, final String itemPath,
             final HCTQuery hctQuery, final Locale locale)
             throws SAXException, RepositoryException, IOException, ObjectBeanManagerException {
 
-        final XMLReader xmlReader = new StartEndDocumentFilter(XMLUtils.createXMLReader(saxConsumer));
-        xmlReader.setContentHandler(saxConsumer);
-
         startHippoItem(item, itemPath);
 
         for (final String fieldName : hctQuery.getReturnFields()) {
@@ -511,7 +479,7 @@ public class HippoItemXMLDumper {
 
                 if (rtfs != null && !rtfs.isEmpty()) {
                     for (HippoHtml rtf : rtfs) {
-                        dumpHtml(connManager, rtf, xmlReader, hctQuery.getDateFormat(), locale);
+                        dumpHtml(connManager, rtf, hctQuery.getDateFormat(), locale);
                     }
                 }
 
@@ -535,36 +503,21 @@ public class HippoItemXMLDumper {
         }
 
         if (hctQuery.isReturnImages()) {
-            final List<HippoGalleryImageSet> images = new ArrayList<HippoGalleryImageSet>();
+            final List<String> imageUuids = new ArrayList<String>();
             for (ImageLinkBean imgLink : item.getChildBeans(ImageLinkBean.class)) {
-                Node imgLinkNode = null;
-                try {
-                    imgLinkNode = connManager.getSession().getNodeByIdentifier(imgLink.getImageSetUuid());
-                } catch (RepositoryException e) {
-                    // ignore
-                }
-                if (imgLinkNode != null) {
-                    final HippoItem imgLinkItem = ObjectUtils.getHippoItem(connManager, imgLinkNode);
-                    if (imgLinkItem instanceof HippoGalleryImageSet) {
-                        images.add((HippoGalleryImageSet) imgLinkItem);
-                    }
-                }
+                imageUuids.add(imgLink.getImageSetUuid());
             }
-            dumpImages(images, Element.IMAGE.getName(), true);
+            dumpImages(ObjectUtils.getHippoItemsByUuids(connManager, imageUuids, HippoGalleryImageSet.class),
+                    Element.IMAGE, true);
         }
 
         if (hctQuery.isReturnRelatedDocs()) {
-            final List<HippoDocument> relDocs = new ArrayList<HippoDocument>();
+            final List<String> relDocUuids = new ArrayList<String>();
             for (RelatedDocs docs : item.getChildBeans(RelatedDocs.class)) {
-                for (String relDocUuid : docs.getRelatedDocsUuids()) {
-                    final HippoDocument doc =
-                            ObjectUtils.getHippoItemByUuid(connManager, relDocUuid, HippoDocument.class);
-                    if (doc != null) {
-                        relDocs.add(doc);
-                    }
-                }
+                relDocUuids.addAll(docs.getRelatedDocsUuids());
             }
-            dumpRelatedDocs(relDocs, Element.DOCUMENT.getName(), true);
+            dumpRelatedDocs(ObjectUtils.getHippoItemsByUuids(connManager, relDocUuids, HippoDocument.class),
+                    Element.DOCUMENT, true);
         }
 
         endHippoItem(item);
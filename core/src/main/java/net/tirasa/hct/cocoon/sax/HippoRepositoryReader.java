@@ -15,20 +15,33 @@
  */
 package net.tirasa.hct.cocoon.sax;
 
-import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
+import java.nio.channels.FileChannel;
 import java.util.List;
 import java.util.Map;
+import javax.jcr.Binary;
 import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import net.tirasa.hct.cocoon.cache.BinaryCacheKey;
+import net.tirasa.hct.cocoon.sax.HippoBinaryMetadataCache.Metadata;
 import net.tirasa.hct.repository.HCTConnManager;
+import net.tirasa.hct.util.BinaryStreamer;
+import net.tirasa.hct.util.ByteRange;
 import net.tirasa.hct.util.ObjectUtils;
 import org.apache.cocoon.pipeline.ProcessingException;
 import org.apache.cocoon.pipeline.SetupException;
 import org.apache.cocoon.pipeline.caching.CacheKey;
-import org.apache.cocoon.pipeline.caching.TimestampURLCacheKey;
 import org.apache.cocoon.pipeline.component.CachingPipelineComponent;
 import org.apache.cocoon.sitemap.component.AbstractReader;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.hippoecm.hst.content.beans.standard.HippoAsset;
 import org.hippoecm.hst.content.beans.standard.HippoGalleryImageBean;
 import org.hippoecm.hst.content.beans.standard.HippoGalleryImageSet;
@@ -49,12 +62,28 @@ public class HippoRepositoryReader extends AbstractReader implements CachingPipe
 
     private static final Logger LOG = LoggerFactory.getLogger(HippoRepositoryReader.class);
 
+    private static final String RANGE_HEADER_ENCODING = "US-ASCII";
+
     private transient String uuid;
 
     private transient long lastmodified;
 
     private transient String contentType;
 
+    private transient long length;
+
+    /**
+     * Byte ranges to serve; null for the full binary, empty if none is satisfiable.
+     */
+    private transient List<ByteRange> ranges;
+
+    private transient String boundary;
+
+    /**
+     * Whether the client already holds the current binary, as told by conditional request headers.
+     */
+    private transient boolean notModified;
+
     public HippoRepositoryReader() {
         super();
     }
@@ -94,20 +123,66 @@ public class HippoRepositoryReader extends AbstractReader implements CachingPipe
             nodePath = nodePath.substring(0, nodePath.lastIndexOf(':'));
         }
 
+        final String key = HippoBinaryMetadataCache.getKey(nodePath, imageType.name());
+        Metadata metadata = HippoBinaryMetadataCache.get(key);
+        if (metadata == null) {
+            final long generation = HippoBinaryMetadataCache.getGeneration();
+            metadata = readMetadata(nodePath, imageType);
+            if (metadata != null) {
+                HippoBinaryMetadataCache.put(key, metadata, generation, nodePath);
+            }
+        }
+
+        if (metadata == null) {
+            this.lastmodified = -1;
+            this.uuid = null;
+        } else {
+            this.uuid = metadata.getUuid();
+            this.lastmodified = metadata.getLastModified();
+            this.contentType = metadata.getMimeType();
+            this.length = metadata.getLength();
+        }
+
+        this.notModified = false;
+        this.ranges = null;
+        this.boundary = null;
+
+        final Object request = parameters.get(HttpServletRequest.class.getName());
+        final Object response = parameters.get(HttpServletResponse.class.getName());
+        if (this.uuid != null
+                && request instanceof HttpServletRequest && response instanceof HttpServletResponse) {
+
+            setupValidators((HttpServletRequest) request, (HttpServletResponse) response);
+            if (!this.notModified) {
+                setupRanges((HttpServletRequest) request, (HttpServletResponse) response);
+            }
+        }
+    }
+
+    /**
+     * Maps the gallery image set or asset at the given path, to read its resource's metadata.
+     *
+     * @param nodePath requested path
+     * @param imageType requested image variant
+     * @return metadata, or null if no resource was found
+     */
+    private Metadata readMetadata(final String nodePath, final ImageType imageType) {
         final HCTConnManager connManager = HCTConnManager.getBinaryInstance();
         try {
+            long resourceLastModified = -1;
+            Node resource = null;
             final HippoItem obj = ObjectUtils.getHippoItem(connManager, nodePath);
             if (obj instanceof HippoGalleryImageSet) {
                 final HippoGalleryImageBean imgBean = imageType == ImageType.thumbnail
                         ? ((HippoGalleryImageSet) obj).getThumbnail() : ((HippoGalleryImageSet) obj).getOriginal();
-                this.lastmodified = imgBean.getLastModified().getTimeInMillis();
-                this.uuid = imgBean.getNode().getIdentifier();
+                resourceLastModified = imgBean.getLastModified().getTimeInMillis();
+                resource = imgBean.getNode();
             } else if (obj instanceof HippoAsset) {
                 final List<HippoResource> resources = ((HippoAsset) obj).getChildBeans(HippoResource.class);
                 if (resources != null && !resources.isEmpty()) {
                     final HippoResource asset = resources.get(0);
-                    this.lastmodified = asset.getLastModified().getTimeInMillis();
-                    this.uuid = asset.getNode().getIdentifier();
+                    resourceLastModified = asset.getLastModified().getTimeInMillis();
+                    resource = asset.getNode();
                 }
             } else {
                 if (obj == null) {
@@ -115,9 +190,13 @@ public class HippoRepositoryReader extends AbstractReader implements CachingPipe
                 } else {
                     LOG.warn("Unexpected node type: {}", obj.getClass().getName());
                 }
-                this.lastmodified = -1;
-                this.uuid = null;
             }
+
+            return resource == null
+                    ? null
+                    : new Metadata(resource.getIdentifier(), resource.getPath(), resourceLastModified,
+                    resource.getProperty(ResourceUtils.DEFAULT_BINARY_MIME_TYPE_PROP_NAME).getString(),
+                    resource.getProperty(ResourceUtils.DEFAULT_BINARY_DATA_PROP_NAME).getLength());
         } catch (Exception e) {
             throw new ProcessingException("While reading " + nodePath, e);
         } finally {
@@ -125,9 +204,104 @@ public class HippoRepositoryReader extends AbstractReader implements CachingPipe
         }
     }
 
+    private String getETag() {
+        return "\"" + this.uuid + "-" + this.lastmodified + "\"";
+    }
+
+    /**
+     * Sends <tt>ETag</tt> and <tt>Last-Modified</tt>, and checks whether the client already holds the current binary.
+     *
+     * @param request HTTP request
+     * @param response HTTP response
+     */
+    private void setupValidators(final HttpServletRequest request, final HttpServletResponse response) {
+        response.setHeader("ETag", getETag());
+        if (this.lastmodified > 0) {
+            response.setDateHeader("Last-Modified", this.lastmodified);
+        }
+
+        // If-None-Match takes precedence over If-Modified-Since
+        final String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch == null) {
+            if (this.lastmodified > 0) {
+                try {
+                    final long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+                    this.notModified = ifModifiedSince != -1 && this.lastmodified / 1000 <= ifModifiedSince / 1000;
+                } catch (IllegalArgumentException e) {
+                    LOG.debug("Invalid If-Modified-Since value: {}", request.getHeader("If-Modified-Since"));
+                }
+            }
+        } else {
+            for (String etag : StringUtils.split(ifNoneMatch, ',')) {
+                // weak comparison is fine for GET
+                final String trimmed = StringUtils.removeStart(etag.trim(), "W/");
+                this.notModified |= "*".equals(trimmed) || getETag().equals(trimmed);
+            }
+        }
+
+        if (this.notModified) {
+            LOG.debug("{} not modified", this.uuid);
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        }
+    }
+
+    /**
+     * Looks for byte ranges in the current HTTP request, if any, and prepares the response accordingly.
+     *
+     * @param httpRequest HTTP request
+     * @param httpResponse HTTP response
+     */
+    private void setupRanges(final HttpServletRequest httpRequest, final HttpServletResponse httpResponse) {
+        httpResponse.setHeader("Accept-Ranges", "bytes");
+
+        final String range = httpRequest.getHeader("Range");
+        if (range == null || !isIfRangeMatching(httpRequest)) {
+            return;
+        }
+
+        this.ranges = ByteRange.parse(range, this.length);
+        if (this.ranges == null) {
+            LOG.debug("Ignoring invalid range {}", range);
+        } else if (this.ranges.isEmpty()) {
+            httpResponse.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            httpResponse.setHeader("Content-Range", "bytes */" + this.length);
+        } else {
+            httpResponse.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            if (this.ranges.size() == 1) {
+                httpResponse.setHeader("Content-Range", this.ranges.get(0).toContentRange(this.length));
+            } else {
+                // must not change among requests, for the response to be cacheable
+                this.boundary = "HCT" + this.uuid.replace("-", "") + Long.toHexString(this.lastmodified);
+            }
+        }
+    }
+
+    /**
+     * @param request HTTP request
+     * @return whether there is no <tt>If-Range</tt> header, or it matches the current binary's ETag or last
+     * modification
+     */
+    private boolean isIfRangeMatching(final HttpServletRequest request) {
+        final String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.trim().startsWith("\"") || ifRange.trim().startsWith("W/")) {
+            // strong comparison required: weak ETags never match
+            return getETag().equals(ifRange.trim());
+        }
+
+        try {
+            return request.getDateHeader("If-Range") / 1000 == this.lastmodified / 1000;
+        } catch (IllegalArgumentException e) {
+            LOG.debug("Unsupported If-Range value: {}", request.getHeader("If-Range"));
+            return false;
+        }
+    }
+
     @Override
     public String getContentType() {
-        return contentType;
+        return this.boundary == null ? contentType : "multipart/byteranges; boundary=" + this.boundary;
     }
 
     @Override
@@ -136,7 +310,13 @@ public class HippoRepositoryReader extends AbstractReader implements CachingPipe
             throw new SetupException(getClass().getSimpleName() + " has no source configured to read from.");
         }
 
-        return new TimestampURLCacheKey(this.source, this.lastmodified);
+        // nothing worth caching is produced
+        if (this.notModified) {
+            return null;
+        }
+
+        return new BinaryCacheKey(this.source, this.lastmodified,
+                this.ranges == null ? null : (this.ranges.isEmpty() ? "*" : this.ranges.toString()));
     }
 
     @Override
@@ -145,24 +325,130 @@ public class HippoRepositoryReader extends AbstractReader implements CachingPipe
             throw new IllegalArgumentException(getClass().getSimpleName() + " wasn't able to read from given URL.");
         }
 
+        if (this.notModified) {
+            return;
+        }
+        if (this.ranges != null && this.ranges.isEmpty()) {
+            LOG.debug("No satisfiable range for {}", this.uuid);
+            return;
+        }
+
+        File cached = HippoBinaryCache.get(this.uuid, this.lastmodified);
+        try {
+            if (cached != null && write(cached)) {
+                return;
+            }
+        } catch (IOException e) {
+            throw new ProcessingException("While reading " + cached, e);
+        }
+
         final HCTConnManager connManager = HCTConnManager.getBinaryInstance();
-        BufferedInputStream repositoryIS = null;
+        Binary binary = null;
         try {
             final Node node = connManager.getSession().getNodeByIdentifier(this.uuid);
-            this.contentType = node.getProperty(ResourceUtils.DEFAULT_BINARY_MIME_TYPE_PROP_NAME).getString();
-
-            repositoryIS = new BufferedInputStream(node.getProperty(
-                    ResourceUtils.DEFAULT_BINARY_DATA_PROP_NAME).getBinary().getStream());
-            final byte[] buffer = new byte[1024];
-            while (repositoryIS.available() != 0) {
-                final int len = repositoryIS.read(buffer);
-                this.outputStream.write(buffer, 0, len);
+            binary = node.getProperty(ResourceUtils.DEFAULT_BINARY_DATA_PROP_NAME).getBinary();
+
+            cached = null;
+            if (HippoBinaryCache.isCacheable(this.length)) {
+                final InputStream repositoryIS = binary.getStream();
+                try {
+                    cached = HippoBinaryCache.put(this.uuid, this.lastmodified, node.getPath(), repositoryIS);
+                } catch (IOException e) {
+                    LOG.warn("Could not copy {} to disk", this.uuid, e);
+                } finally {
+                    IOUtils.closeQuietly(repositoryIS);
+                }
+            }
+
+            if (cached == null || !write(cached)) {
+                write(binary);
             }
         } catch (Exception e) {
             throw new ProcessingException("While reading node", e);
         } finally {
-            IOUtils.closeQuietly(repositoryIS);
+            if (binary != null) {
+                binary.dispose();
+            }
             connManager.logout();
         }
     }
+
+    /**
+     * Writes the requested content from the given local copy.
+     *
+     * @param file local copy
+     * @return false if the given file is no longer available
+     * @throws IOException if reading or writing fails
+     */
+    private boolean write(final File file) throws IOException {
+        final FileInputStream fileIS;
+        try {
+            fileIS = new FileInputStream(file);
+        } catch (FileNotFoundException e) {
+            LOG.debug("{} was removed meanwhile", file);
+            return false;
+        }
+
+        try {
+            final FileChannel channel = fileIS.getChannel();
+            if (this.ranges == null) {
+                BinaryStreamer.copy(fileIS, this.outputStream);
+            } else if (this.boundary == null) {
+                final ByteRange range = this.ranges.get(0);
+                BinaryStreamer.copy(channel, range.getStart(), range.getLength(), this.outputStream);
+            } else {
+                for (ByteRange range : this.ranges) {
+                    writePartHeader(range);
+                    BinaryStreamer.copy(channel, range.getStart(), range.getLength(), this.outputStream);
+                }
+                writeClosingBoundary();
+            }
+            LOG.debug("{} served from {}", this.uuid, file);
+        } finally {
+            IOUtils.closeQuietly(fileIS);
+        }
+        return true;
+    }
+
+    /**
+     * Writes the requested content from the given repository binary.
+     *
+     * @param binary repository binary
+     * @throws IOException if writing fails
+     * @throws RepositoryException if reading fails
+     */
+    private void write(final Binary binary) throws IOException, RepositoryException {
+        if (this.ranges == null) {
+            // no further buffering: the streamer reads with a large buffer, or transfers between channels
+            final InputStream repositoryIS = binary.getStream();
+            try {
+                final long copied = BinaryStreamer.copy(repositoryIS, this.outputStream);
+                LOG.debug("{} bytes read from {}", copied, this.uuid);
+            } finally {
+                IOUtils.closeQuietly(repositoryIS);
+            }
+        } else if (this.boundary == null) {
+            final ByteRange range = this.ranges.get(0);
+            BinaryStreamer.copy(binary, range.getStart(), range.getLength(), this.outputStream);
+            LOG.debug("Range {} read from {}", range, this.uuid);
+        } else {
+            for (ByteRange range : this.ranges) {
+                writePartHeader(range);
+                BinaryStreamer.copy(binary, range.getStart(), range.getLength(), this.outputStream);
+            }
+            writeClosingBoundary();
+            LOG.debug("Ranges {} read from {}", this.ranges, this.uuid);
+        }
+    }
+
+    private void writePartHeader(final ByteRange range) throws IOException {
+        this.outputStream.write(("\r\n--" + this.boundary + "\r\n"
+                + "Content-Type: " + this.contentType + "\r\n"
+                + "Content-Range: " + range.toContentRange(this.length) + "\r\n\r\n").
+                getBytes(RANGE_HEADER_ENCODING));
+    }
+
+    private void writeClosingBoundary() throws IOException {
+        this.outputStream.write(("\r\n--" + this.boundary + "--\r\n").getBytes(RANGE_HEADER_ENCODING));
+    }
 }
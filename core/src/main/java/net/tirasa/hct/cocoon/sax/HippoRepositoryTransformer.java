@@ -17,17 +17,20 @@ package net.tirasa.hct.cocoon.sax;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import javax.jcr.Node;
 import javax.jcr.RepositoryException;
-import net.tirasa.hct.cocoon.cache.AvailabilityLocaleCacheKey;
+import net.tirasa.hct.cocoon.cache.DependencyTrackingCacheKey;
 import net.tirasa.hct.cocoon.sax.Constants.Attribute;
 import net.tirasa.hct.cocoon.sax.Constants.Availability;
 import net.tirasa.hct.cocoon.sax.Constants.Element;
-import net.tirasa.hct.cocoon.sax.Constants.StartEndDocumentFilter;
 import net.tirasa.hct.cocoon.sax.Constants.State;
 import net.tirasa.hct.hstbeans.HCTTaxonomyCategoryBean;
 import net.tirasa.hct.hstbeans.HippoCompoundDocument;
@@ -37,7 +40,10 @@ import net.tirasa.hct.repository.HCTConnManager;
 import net.tirasa.hct.repository.HCTDocument;
 import net.tirasa.hct.repository.HCTQuery;
 import net.tirasa.hct.repository.HCTQueryResult;
+import net.tirasa.hct.repository.HCTQueryResultCache;
+import net.tirasa.hct.repository.HCTSessionPool;
 import net.tirasa.hct.repository.HCTTraversal;
+import net.tirasa.hct.util.ContentTreeIndex;
 import net.tirasa.hct.util.ObjectUtils;
 import net.tirasa.hct.util.TaxonomyUtils;
 import org.apache.cocoon.configuration.Settings;
@@ -45,7 +51,8 @@ import org.apache.cocoon.pipeline.ProcessingException;
 import org.apache.cocoon.pipeline.caching.CacheKey;
 import org.apache.cocoon.pipeline.component.CachingPipelineComponent;
 import org.apache.cocoon.sax.AbstractSAXTransformer;
-import org.apache.cocoon.sax.util.XMLUtils;
+import org.apache.cocoon.sax.util.SAXConsumerAdapter;
+import org.apache.cocoon.xml.sax.SAXBuffer;
 import org.apache.commons.lang3.LocaleUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.hippoecm.hst.content.beans.ObjectBeanManagerException;
@@ -66,7 +73,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
-import org.xml.sax.XMLReader;
 
 public class HippoRepositoryTransformer extends AbstractSAXTransformer implements CachingPipelineComponent {
 
@@ -88,6 +94,10 @@ public class HippoRepositoryTransformer extends AbstractSAXTransformer implement
 
     private transient HCTQuery hctQuery;
 
+    private transient HCTConnManager connManager;
+
+    private transient DependencyTrackingCacheKey cacheKey;
+
     @Override
     @SuppressWarnings("unchecked")
     public void setConfiguration(final Map<String, ? extends Object> configuration) {
@@ -145,47 +155,83 @@ public class HippoRepositoryTransformer extends AbstractSAXTransformer implement
         }
 
         state = State.OUTSIDE;
+        releaseConnManager();
     }
 
     @Override
     public void finish() {
         state = null;
+        releaseConnManager();
+        if (cacheKey != null) {
+            cacheKey.register();
+            cacheKey = null;
+        }
 
         super.finish();
     }
 
+    /**
+     * The same connection is shared by all hct elements found during a single pipeline execution: it is opened upon
+     * the first element requiring it and released by {@link #finish()}, or as soon as any element handling fails.
+     *
+     * @return the connection to be used for this pipeline execution
+     */
+    private HCTConnManager getConnManager() {
+        if (connManager == null) {
+            connManager = HCTConnManager.getContentInstance();
+        }
+        return connManager;
+    }
+
+    private void releaseConnManager() {
+        if (connManager != null) {
+            connManager.logout();
+            connManager = null;
+        }
+    }
+
     @Override
     public CacheKey constructCacheKey() {
-        return new AvailabilityLocaleCacheKey(availability, locale);
+        cacheKey = new DependencyTrackingCacheKey(availability, locale);
+        return cacheKey;
+    }
+
+    /**
+     * Records repository paths read during this pipeline execution, so that cached output expires when any of them
+     * changes.
+     *
+     * @param paths repository paths
+     */
+    private void addDependencies(final Collection<String> paths) {
+        if (cacheKey != null) {
+            cacheKey.addDependencies(paths);
+        }
     }
 
     private void findAndDumpImagesAndAssets(final HCTConnManager connManager, final HippoDocument doc,
             final HippoItemXMLDumper dumper)
             throws ObjectBeanManagerException, SAXException {
 
-        final List<HippoGalleryImageSet> images = new ArrayList<HippoGalleryImageSet>();
+        final List<String> imageUuids = new ArrayList<String>();
         final List<HippoAsset> assets = new ArrayList<HippoAsset>();
         for (HippoMirror mirror : doc.getChildBeans(HippoMirror.class)) {
             final HippoBean bean = mirror.getReferencedBean();
             if (bean != null) {
                 if (bean instanceof HippoGalleryImageSet) {
-                    final HippoItem subElement = ObjectUtils.getHippoItemByUuid(connManager,
-                            (String) ((HippoFacetSelect) mirror).getProperty(HippoNodeType.HIPPO_DOCBASE));
-                    if (subElement instanceof HippoGalleryImageSet) {
-                        images.add((HippoGalleryImageSet) subElement);
-                    }
+                    imageUuids.add((String) ((HippoFacetSelect) mirror).getProperty(HippoNodeType.HIPPO_DOCBASE));
                 }
                 if (bean instanceof HippoAsset) {
                     assets.add((HippoAsset) bean);
                 }
             }
         }
-        dumper.dumpImages(images, Element.IMAGE.getName(), true);
-        dumper.dumpAssets(assets, Element.ASSET.getName(), true, hctDocument.getDateFormat(), locale);
+        dumper.dumpImages(ObjectUtils.getHippoItemsByUuids(connManager, imageUuids, HippoGalleryImageSet.class),
+                Element.IMAGE, true);
+        dumper.dumpAssets(assets, Element.ASSET, true, hctDocument.getDateFormat(), locale);
     }
 
     private void compounds(final HCTConnManager connManager, final HippoDocument container,
-            final HippoItemXMLDumper dumper, final XMLReader xmlReader)
+            final HippoItemXMLDumper dumper)
             throws SAXException, RepositoryException, ObjectBeanManagerException, IOException {
 
         dumper.startHippoCompounds();
@@ -204,13 +250,13 @@ public class HippoRepositoryTransformer extends AbstractSAXTransformer implement
 
             // 3 Compound HTML fields
             for (HippoHtml rtf : compound.getChildBeans(HippoHtml.class)) {
-                dumper.dumpHtml(connManager, rtf, xmlReader, hctDocument.getDateFormat(), locale);
+                dumper.dumpHtml(connManager, rtf, hctDocument.getDateFormat(), locale);
             }
 
             // 4 Compound images and assets
             findAndDumpImagesAndAssets(connManager, compound, dumper);
 
-            compounds(connManager, compound, dumper, xmlReader);
+            compounds(connManager, compound, dumper);
 
             dumper.endHippoCompound(compound);
         }
@@ -222,7 +268,31 @@ public class HippoRepositoryTransformer extends AbstractSAXTransformer implement
 
         final HippoDocument doc = hctDocument.getHippoDocument(connManager, locale, availability);
 
-        final HippoItemXMLDumper dumper = new HippoItemXMLDumper(this.getSAXConsumer());
+        final String key = HippoDocumentCache.getKey(doc, availability, locale, hctDocument.getDateFormat());
+        final HippoDocumentCache.Fragment cached = HippoDocumentCache.get(key);
+        if (cached == null) {
+            final long generation = HippoDocumentCache.getGeneration();
+
+            final SAXBuffer fragment = new SAXBuffer();
+            final SAXConsumerAdapter adapter = new SAXConsumerAdapter();
+            adapter.setContentHandler(fragment);
+            final HippoItemXMLDumper dumper = new HippoItemXMLDumper(adapter);
+            dumpDocument(connManager, doc, dumper);
+
+            HippoDocumentCache.put(key, fragment, generation, dumper.getDependencies());
+            addDependencies(dumper.getDependencies());
+            fragment.toSAX(this.getSAXConsumer());
+        } else {
+            LOG.debug("Document output found in cache for {}", key);
+
+            addDependencies(cached.getDependencies());
+            cached.getBuffer().toSAX(this.getSAXConsumer());
+        }
+    }
+
+    private void dumpDocument(final HCTConnManager connManager, final HippoDocument doc,
+            final HippoItemXMLDumper dumper)
+            throws ObjectBeanManagerException, SAXException, IOException, RepositoryException {
 
         // 1. document
         dumper.startHippoItem(doc, doc.getPath());
@@ -244,29 +314,23 @@ public class HippoRepositoryTransformer extends AbstractSAXTransformer implement
         }
 
         // 4. HTML fields
-        final XMLReader xmlReader = new StartEndDocumentFilter(XMLUtils.createXMLReader(this.getSAXConsumer()));
-        xmlReader.setContentHandler(this.getSAXConsumer());
         for (HippoHtml rtf : doc.getChildBeans(HippoHtml.class)) {
-            dumper.dumpHtml(connManager, rtf, xmlReader, hctDocument.getDateFormat(), locale);
+            dumper.dumpHtml(connManager, rtf, hctDocument.getDateFormat(), locale);
         }
 
         // 5. Images and Assets
         findAndDumpImagesAndAssets(connManager, doc, dumper);
 
         // 6. Compounds
-        compounds(connManager, doc, dumper, xmlReader);
+        compounds(connManager, doc, dumper);
 
         // 7. Related documents
-        final List<HippoDocument> relDocs = new ArrayList<HippoDocument>();
+        final List<String> relDocUuids = new ArrayList<String>();
         for (RelatedDocs docs : doc.getChildBeans(RelatedDocs.class)) {
-            for (String relDocUuid : docs.getRelatedDocsUuids()) {
-                HippoDocument docByUuid = ObjectUtils.getHippoItemByUuid(connManager, relDocUuid, HippoDocument.class);
-                if (docByUuid != null) {
-                    relDocs.add(doc);
-                }
-            }
+            relDocUuids.addAll(docs.getRelatedDocsUuids());
         }
-        dumper.dumpRelatedDocs(relDocs, Element.DOCUMENT.getName(), true);
+        dumper.dumpRelatedDocs(ObjectUtils.getHippoItemsByUuids(connManager, relDocUuids, HippoDocument.class),
+                Element.DOCUMENT, true);
 
         dumper.endHippoItem(doc);
     }
@@ -275,6 +339,9 @@ public class HippoRepositoryTransformer extends AbstractSAXTransformer implement
         final HippoItemXMLDumper dumper = new HippoItemXMLDumper(this.getSAXConsumer());
 
         dumper.dumpTags(AllTagsProvider.getTags(connManager.getSession(), "tags"));
+
+        // tags are collected from all documents
+        addDependencies(Collections.singleton(ContentTreeIndex.CONTENT_ROOT));
     }
 
     private <T extends HippoItem> void recursiveTraversal(final HippoItem item, final Class<T> traversalType,
@@ -308,6 +375,8 @@ public class HippoRepositoryTransformer extends AbstractSAXTransformer implement
         final HippoItemXMLDumper dumper = new HippoItemXMLDumper(this.getSAXConsumer());
 
         recursiveTraversal(base, traversalType, hctTraversal.getDepth(), dumper);
+
+        addDependencies(Collections.singleton(base.getPath()));
     }
 
     private void query(final HCTConnManager connManager)
@@ -318,7 +387,9 @@ public class HippoRepositoryTransformer extends AbstractSAXTransformer implement
         }
         hctQuery.setSession(connManager.getSession());
 
-        final HCTQueryResult queryResult = hctQuery.execute(locale, availability);
+        // grouping by folder / taxonomy needs all matching documents upfront
+        final HCTQueryResult queryResult =
+                HCTQueryResultCache.execute(hctQuery, locale, availability, !hctQuery.isIncludeFolders());
         LOG.debug("Query is {}", hctQuery.getSQLQuery());
 
         final HippoItemXMLDumper dumper = new HippoItemXMLDumper(this.getSAXConsumer());
@@ -327,78 +398,120 @@ public class HippoRepositoryTransformer extends AbstractSAXTransformer implement
         dumper.startQueryResult(queryResult, base);
 
         if (hctQuery.isIncludeFolders()) {
-            // 1. group matching documents by folder / taxonomy
-            final Map<HippoItem, List<HippoItem>> resultByFolder = new HashMap<HippoItem, List<HippoItem>>();
-            for (String uuid : queryResult.getUuids()) {
-                final HippoItem item = ObjectUtils.getHippoItemByUuid(connManager, uuid);
-                if (item != null) {
-                    if (hctQuery.getType() == HCTQuery.Type.TAXONOMY_DOCS) {
-                        final String[] keys = item.getProperty(TaxonomyNodeTypes.HIPPOTAXONOMY_KEYS);
-                        for (int i = 0; keys != null && i < keys.length; i++) {
-                            if (hctQuery.getTaxonomies().keySet().contains(keys[i])) {
-                                final HCTTaxonomyCategoryBean taxonomy = ObjectUtils.getHippoItem(
-                                        connManager, hctQuery.getTaxonomies().get(keys[i]),
-                                        HCTTaxonomyCategoryBean.class);
-                                if (taxonomy != null) {
-                                    if (!resultByFolder.containsKey(taxonomy)) {
-                                        resultByFolder.put(taxonomy, new ArrayList<HippoItem>());
-                                    }
-                                    resultByFolder.get(taxonomy).add(item);
-                                }
+            // 1. group matching documents by folder path / taxonomy key, in result order
+            final Map<String, List<HippoItem>> resultByFolder = new LinkedHashMap<String, List<HippoItem>>();
+            final List<String> folderUuids = new ArrayList<String>();
+            for (HippoItem item : ObjectUtils.getHippoItemsByUuids(connManager, queryResult.getUuids())) {
+                if (hctQuery.getType() == HCTQuery.Type.TAXONOMY_DOCS) {
+                    final String[] keys = item.getProperty(TaxonomyNodeTypes.HIPPOTAXONOMY_KEYS);
+                    for (int i = 0; keys != null && i < keys.length; i++) {
+                        if (hctQuery.getTaxonomies().keySet().contains(keys[i])) {
+                            if (!resultByFolder.containsKey(keys[i])) {
+                                resultByFolder.put(keys[i], new ArrayList<HippoItem>());
                             }
+                            resultByFolder.get(keys[i]).add(item);
                         }
-                    } else {
-                        final HippoFolder folder = (HippoFolder) item.getParentBean();
-                        if (!resultByFolder.containsKey(folder)) {
-                            resultByFolder.put(folder, new ArrayList<HippoItem>());
-                        }
-                        resultByFolder.get(folder).add(item);
                     }
+                } else {
+                    // same as getParentBean(), without mapping it
+                    Node folder = item.getNode().getParent();
+                    if (folder.isNodeType(HippoNodeType.NT_HANDLE)) {
+                        folder = folder.getParent();
+                    }
+                    if (!resultByFolder.containsKey(folder.getPath())) {
+                        resultByFolder.put(folder.getPath(), new ArrayList<HippoItem>());
+                        folderUuids.add(folder.getIdentifier());
+                    }
+                    resultByFolder.get(folder.getPath()).add(item);
                 }
             }
 
-            // 2. output results by folder / taxonomy
-            for (Map.Entry<HippoItem, List<HippoItem>> entry : resultByFolder.entrySet()) {
-                if (hctQuery.getType() == HCTQuery.Type.TAXONOMY_DOCS) {
-                    dumper.startTaxonomy((HCTTaxonomyCategoryBean) entry.getKey(), locale);
-                    for (HippoItem item : entry.getValue()) {
-                        dumper.dumpHippoItem(connManager, item, TaxonomyUtils.buildPathInTaxonomy(
-                                entry.getKey().getPath(), item.getName()), hctQuery, locale);
+            // 2. output results by folder / taxonomy, each mapped once
+            if (hctQuery.getType() == HCTQuery.Type.TAXONOMY_DOCS) {
+                for (Map.Entry<String, List<HippoItem>> entry : resultByFolder.entrySet()) {
+                    final HCTTaxonomyCategoryBean taxonomy = ObjectUtils.getHippoItem(
+                            connManager, hctQuery.getTaxonomies().get(entry.getKey()), HCTTaxonomyCategoryBean.class);
+                    if (taxonomy != null) {
+                        dumper.startTaxonomy(taxonomy, locale);
+                        for (HippoItem item : entry.getValue()) {
+                            dumper.dumpHippoItem(connManager, item, TaxonomyUtils.buildPathInTaxonomy(
+                                    taxonomy.getPath(), item.getName()), hctQuery, locale);
+                        }
+                        dumper.endTaxonomy();
                     }
-                    dumper.endTaxonomy();
-                } else {
-                    dumper.startHippoItem(entry.getKey(), entry.getKey().getPath());
-                    for (HippoItem item : entry.getValue()) {
+                }
+            } else {
+                for (HippoFolder folder : ObjectUtils.getHippoItemsByUuids(connManager, folderUuids,
+                        HippoFolder.class)) {
+
+                    dumper.startHippoItem(folder, folder.getPath());
+                    for (HippoItem item : resultByFolder.get(folder.getPath())) {
                         dumper.dumpHippoItem(connManager, item, item.getPath(), hctQuery, locale);
                     }
-                    dumper.endHippoItem(entry.getKey());
+                    dumper.endHippoItem(folder);
                 }
             }
-        } else {
-            for (String uuid : queryResult.getUuids()) {
+        } else if (hctQuery.getConcurrency() > 1) {
+            // hydrate the next items on worker threads, while emitting in result order
+            final HippoItemPrefetcher prefetcher = new HippoItemPrefetcher(this.getSAXConsumer(), connManager,
+                    hctQuery.getConcurrency(), new HippoItemPrefetcher.ItemDumper() {
+
+                        @Override
+                        public void dump(final HCTConnManager connManager, final HippoItemXMLDumper dumper,
+                                final HippoItem item)
+                                throws SAXException, RepositoryException, IOException, ObjectBeanManagerException {
+
+                            dumpQueryResultItem(connManager, dumper, item);
+                        }
+                    });
+            try {
+                for (String uuid : queryResult) {
+                    prefetcher.add(uuid);
+                }
+                prefetcher.finish();
+            } finally {
+                prefetcher.close();
+            }
+            addDependencies(prefetcher.getDependencies());
+        } else if (queryResult.isStreaming()) {
+            // emit each document as soon as its row is read
+            for (String uuid : queryResult) {
                 final HippoItem item = ObjectUtils.getHippoItemByUuid(connManager, uuid);
                 if (item != null) {
-                    switch (hctQuery.getType()) {
-                        case TAXONOMY_DOCS:
-                            final String[] keys = item.getProperty(TaxonomyNodeTypes.HIPPOTAXONOMY_KEYS);
-                            for (int i = 0; keys != null && i < keys.length; i++) {
-                                if (hctQuery.getTaxonomies().keySet().contains(keys[i])) {
-                                    dumper.dumpHippoItem(connManager, item, TaxonomyUtils.buildPathInTaxonomy(
-                                            hctQuery.getTaxonomies().get(keys[i]), item.getName()),
-                                            hctQuery, locale);
-                                }
-                            }
-                            break;
-
-                        case FOLDER_DOCS:
-                        default:
-                            dumper.dumpHippoItem(connManager, item, item.getPath(), hctQuery, locale);
-                    }
+                    dumpQueryResultItem(connManager, dumper, item);
                 }
             }
+        } else {
+            for (HippoItem item : ObjectUtils.getHippoItemsByUuids(connManager, queryResult.getUuids())) {
+                dumpQueryResultItem(connManager, dumper, item);
+            }
         }
 
         dumper.endQueryResult();
+
+        addDependencies(Arrays.asList(hctQuery.getSearchPaths()));
+        addDependencies(dumper.getDependencies());
+    }
+
+    private void dumpQueryResultItem(final HCTConnManager connManager, final HippoItemXMLDumper dumper,
+            final HippoItem item) throws SAXException, RepositoryException, IOException, ObjectBeanManagerException {
+
+        switch (hctQuery.getType()) {
+            case TAXONOMY_DOCS:
+                final String[] keys = item.getProperty(TaxonomyNodeTypes.HIPPOTAXONOMY_KEYS);
+                for (int i = 0; keys != null && i < keys.length; i++) {
+                    if (hctQuery.getTaxonomies().keySet().contains(keys[i])) {
+                        dumper.dumpHippoItem(connManager, item, TaxonomyUtils.buildPathInTaxonomy(
+                                hctQuery.getTaxonomies().get(keys[i]), item.getName()),
+                                hctQuery, locale);
+                    }
+                }
+                break;
+
+            case FOLDER_DOCS:
+            default:
+                dumper.dumpHippoItem(connManager, item, item.getPath(), hctQuery, locale);
+        }
     }
 
     private String parseDateFormat(final Attributes atts) {
@@ -449,10 +562,58 @@ public class HippoRepositoryTransformer extends AbstractSAXTransformer implement
         return page;
     }
 
+    private HCTQuery.CountMode parseCountMode(final Attributes atts) {
+        HCTQuery.CountMode countMode = HCTQuery.CountMode.exact;
+        if (StringUtils.isNotBlank(atts.getValue(Attribute.COUNT_MODE.getName()))) {
+            try {
+                countMode = HCTQuery.CountMode.valueOf(atts.getValue(Attribute.COUNT_MODE.getName()));
+            } catch (IllegalArgumentException e) {
+                LOG.error("Invalid count mode specified, reverting to default ({})", countMode, e);
+            }
+        }
+
+        return countMode;
+    }
+
+    private int parseConcurrency(final Attributes atts) {
+        int concurrency = 1;
+        if (StringUtils.isNotBlank(atts.getValue(Attribute.CONCURRENCY.getName()))) {
+            try {
+                concurrency = Math.max(1, Integer.parseInt(atts.getValue(Attribute.CONCURRENCY.getName())));
+            } catch (NumberFormatException e) {
+                LOG.error("Invalid concurrency specified, reverting to default (1)", e);
+            }
+        }
+
+        // no more than prefetch threads, nor than sessions left besides the one held by this transformer
+        final int max = Math.max(1, Math.min(HippoItemPrefetcher.getThreads(), HCTSessionPool.getMaxActive() - 1));
+        if (concurrency > max) {
+            LOG.warn("Concurrency {} exceeds maximum, reverting to {}", concurrency, max);
+            concurrency = max;
+        }
+
+        return concurrency;
+    }
+
     @Override
     public void startElement(final String uri, final String localName, final String name, final Attributes atts)
             throws SAXException {
 
+        boolean completed = false;
+        try {
+            doStartElement(uri, localName, name, atts);
+            completed = true;
+        } finally {
+            // pipeline execution is failing, and finish() might never be invoked
+            if (!completed) {
+                releaseConnManager();
+            }
+        }
+    }
+
+    private void doStartElement(final String uri, final String localName, final String name, final Attributes atts)
+            throws SAXException {
+
         if (!Constants.NS_HCT.equals(uri)) {
             super.startElement(uri, localName, name, atts);
             return;
@@ -503,6 +664,8 @@ public class HippoRepositoryTransformer extends AbstractSAXTransformer implement
             hctQuery.setDepth(parseDepth(atts));
             hctQuery.setSize(parseSize(atts));
             hctQuery.setPage(parsePage(atts));
+            hctQuery.setCountMode(parseCountMode(atts));
+            hctQuery.setConcurrency(parseConcurrency(atts));
 
             hctQuery.setIncludeFolders("true".equalsIgnoreCase(atts.getValue(Attribute.INCLUDE_FOLDERS.getName())));
         }
@@ -626,6 +789,21 @@ public class HippoRepositoryTransformer extends AbstractSAXTransformer implement
     public void endElement(final String uri, final String localName, final String name)
             throws SAXException {
 
+        boolean completed = false;
+        try {
+            doEndElement(uri, localName, name);
+            completed = true;
+        } finally {
+            // pipeline execution is failing, and finish() might never be invoked
+            if (!completed) {
+                releaseConnManager();
+            }
+        }
+    }
+
+    private void doEndElement(final String uri, final String localName, final String name)
+            throws SAXException {
+
         if (!Constants.NS_HCT.equals(uri)) {
             super.endElement(uri, localName, name);
             return;
@@ -677,13 +855,10 @@ public class HippoRepositoryTransformer extends AbstractSAXTransformer implement
             }
             state = State.OUTSIDE;
 
-            final HCTConnManager connManager = HCTConnManager.getContentInstance();
             try {
-                query(connManager);
+                query(getConnManager());
             } catch (Exception e) {
                 throw new ProcessingException("While performing query " + hctQuery.getSQLQuery(), e);
-            } finally {
-                connManager.logout();
             }
         }
 
@@ -692,15 +867,11 @@ public class HippoRepositoryTransformer extends AbstractSAXTransformer implement
                 throw new InvalidHCTRequestException(localName, state);
             }
 
-            final HCTConnManager connManager = HCTConnManager.getContentInstance();
             try {
-                traverse(connManager);
+                traverse(getConnManager());
             } catch (Exception e) {
                 throw new ProcessingException("While performing traversal " + hctTraversal, e);
-            } finally {
-                connManager.logout();
             }
-
         }
 
         if (element == Element.TAGS) {
@@ -708,13 +879,10 @@ public class HippoRepositoryTransformer extends AbstractSAXTransformer implement
                 throw new InvalidHCTRequestException(localName, state);
             }
 
-            final HCTConnManager connManager = HCTConnManager.getContentInstance();
             try {
-                tags(connManager);
+                tags(getConnManager());
             } catch (Exception e) {
                 throw new ProcessingException("While fetching tags", e);
-            } finally {
-                connManager.logout();
             }
         }
 
@@ -723,13 +891,10 @@ public class HippoRepositoryTransformer extends AbstractSAXTransformer implement
                 throw new InvalidHCTRequestException(localName, state);
             }
 
-            final HCTConnManager connManager = HCTConnManager.getContentInstance();
             try {
-                document(connManager);
+                document(getConnManager());
             } catch (Exception e) {
                 throw new ProcessingException("While fetching document", e);
-            } finally {
-                connManager.logout();
             }
         }
     }
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2012 Tirasa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.hct.repository;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.hippoecm.hst.content.beans.standard.HippoItem;
+
+/**
+ * Identity map of beans already mapped during the lifetime of an HCTConnManager, by UUID and by path.
+ * Hit and miss counters are global, across all connections.
+ */
+public class HCTBeanCache {
+
+    private static final AtomicLong HITS = new AtomicLong();
+
+    private static final AtomicLong MISSES = new AtomicLong();
+
+    private final Map<String, HippoItem> byUuid = new HashMap<String, HippoItem>();
+
+    private final Map<String, HippoItem> byPath = new HashMap<String, HippoItem>();
+
+    public static long getHits() {
+        return HITS.get();
+    }
+
+    public static long getMisses() {
+        return MISSES.get();
+    }
+
+    private HippoItem count(final HippoItem item) {
+        if (item == null) {
+            MISSES.incrementAndGet();
+        } else {
+            HITS.incrementAndGet();
+        }
+        return item;
+    }
+
+    public HippoItem getByUuid(final String uuid) {
+        return count(byUuid.get(uuid));
+    }
+
+    public HippoItem getByPath(final String path) {
+        return count(byPath.get(path));
+    }
+
+    public void put(final String uuid, final String path, final HippoItem item) {
+        if (item == null) {
+            return;
+        }
+
+        if (uuid != null) {
+            byUuid.put(uuid, item);
+        }
+        if (path != null) {
+            byPath.put(path, item);
+        }
+    }
+
+    public int size() {
+        return byUuid.size() + byPath.size();
+    }
+
+    public void clear() {
+        byUuid.clear();
+        byPath.clear();
+    }
+}
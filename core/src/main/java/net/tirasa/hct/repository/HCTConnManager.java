@@ -19,21 +19,14 @@ import javax.jcr.Credentials;
 import javax.jcr.Repository;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
-import net.tirasa.hct.cocoon.sax.Constants;
 import org.apache.cocoon.pipeline.SetupException;
-import org.apache.commons.lang3.ArrayUtils;
-import org.hippoecm.hst.component.support.spring.util.MetadataReaderClasspathResourceScanner;
 import org.hippoecm.hst.content.beans.manager.ObjectBeanManager;
 import org.hippoecm.hst.content.beans.manager.ObjectBeanManagerImpl;
 import org.hippoecm.hst.content.beans.manager.ObjectConverter;
-import org.hippoecm.hst.content.beans.standard.HippoBean;
-import org.hippoecm.hst.site.HstServices;
-import org.hippoecm.hst.util.ObjectConverterUtils;
-import org.springframework.context.support.ClassPathXmlApplicationContext;
 
 public final class HCTConnManager {
 
-    private final transient Repository repository;
+    private final transient HCTSessionPool pool;
 
     private final transient Session session;
 
@@ -41,6 +34,10 @@ public final class HCTConnManager {
 
     private final transient ObjectConverter objConv;
 
+    private final transient HCTBeanCache beanCache = new HCTBeanCache();
+
+    private transient boolean released;
+
     public static HCTConnManager getContentInstance() {
         return new HCTConnManager(Credentials.class.getName() + ".default");
     }
@@ -49,35 +46,21 @@ public final class HCTConnManager {
         return new HCTConnManager(Credentials.class.getName() + ".binaries");
     }
 
-    @SuppressWarnings("unchecked")
     private HCTConnManager(final String componentName) {
-        if (!HstServices.isAvailable()) {
-            throw new SetupException("HstServices not available");
-        }
-
-        final Credentials credentials = HstServices.getComponentManager().getComponent(componentName);
-        repository = HstServices.getComponentManager().getComponent(Repository.class.getName());
+        pool = HCTSessionPool.getInstance(componentName);
+        objConv = HCTObjectConverterRegistry.getObjectConverter();
 
         try {
-            session = repository.login(credentials);
+            session = pool.borrow();
         } catch (RepositoryException e) {
             throw new SetupException("While log in to the Hippo repository", e);
         }
 
-        final MetadataReaderClasspathResourceScanner scanner = new MetadataReaderClasspathResourceScanner();
-        scanner.setResourceLoader(new ClassPathXmlApplicationContext());
         try {
-            final String[] fallbackNodeTypes = ArrayUtils.add(
-                    ObjectConverterUtils.getDefaultFallbackNodeTypes(), "hippo:compound");
-
-            objConv = ObjectConverterUtils.createObjectConverter(
-                    ObjectConverterUtils.getAnnotatedClasses(scanner,
-                    "classpath*:net/tirasa/hct/hstbeans/**/*.class"),
-                    (Class<? extends HippoBean>[]) Constants.DEFAULT_BUILT_IN_MAPPING_CLASSES,
-                    fallbackNodeTypes, false);
             objMan = new ObjectBeanManagerImpl(session, objConv);
-        } catch (Exception e) {
-            throw new SetupException("While creating HST ObjectManager", e);
+        } catch (RuntimeException e) {
+            pool.release(session);
+            throw e;
         }
     }
 
@@ -90,16 +73,25 @@ public final class HCTConnManager {
     }
 
     public Repository getRepository() {
-        return repository;
+        return pool.getRepository();
     }
 
     public Session getSession() {
         return session;
     }
 
+    public HCTBeanCache getBeanCache() {
+        return beanCache;
+    }
+
+    /**
+     * Gives the underlying session back to the pool; this instance shall not be used afterwards.
+     */
     public void logout() {
-        if (session != null) {
-            session.logout();
+        if (session != null && !released) {
+            released = true;
+            beanCache.clear();
+            pool.release(session);
         }
     }
 }
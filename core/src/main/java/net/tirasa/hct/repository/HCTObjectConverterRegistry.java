@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2012 Tirasa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.hct.repository;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import net.tirasa.hct.cocoon.sax.Constants;
+import org.apache.cocoon.pipeline.SetupException;
+import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.hippoecm.hst.component.support.spring.util.MetadataReaderClasspathResourceScanner;
+import org.hippoecm.hst.content.beans.manager.ObjectConverter;
+import org.hippoecm.hst.content.beans.standard.HippoBean;
+import org.hippoecm.hst.util.ObjectConverterUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+/**
+ * Holds the HST ObjectConverter shared by all HCTConnManager instances: classpath scanning for annotated beans is
+ * performed once, when this class is declared as Spring bean (or at first use otherwise), rather than per connection.
+ */
+public class HCTObjectConverterRegistry implements InitializingBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HCTObjectConverterRegistry.class);
+
+    private static final String DEFAULT_BEANS_LOCATION = "classpath*:net/tirasa/hct/hstbeans/**/*.class";
+
+    private static volatile ObjectConverter objConv;
+
+    private static volatile String[] beansLocations = new String[] { DEFAULT_BEANS_LOCATION };
+
+    private static volatile long buildTime = -1;
+
+    private List<String> extraBeanPackages = Collections.emptyList();
+
+    public void setExtraBeanPackages(final List<String> extraBeanPackages) {
+        this.extraBeanPackages = extraBeanPackages == null
+                ? Collections.<String>emptyList()
+                : new ArrayList<String>(extraBeanPackages);
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        reload(extraBeanPackages.toArray(new String[extraBeanPackages.size()]));
+    }
+
+    public static ObjectConverter getObjectConverter() {
+        ObjectConverter result = objConv;
+        if (result == null) {
+            synchronized (HCTObjectConverterRegistry.class) {
+                if (objConv == null) {
+                    objConv = build(beansLocations);
+                }
+                result = objConv;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Rebuilds the shared ObjectConverter, scanning the given packages for annotated beans besides the default ones.
+     *
+     * @param extraBeanPackages packages (as <tt>org.example.beans</tt>) to scan for annotated beans
+     */
+    public static synchronized void reload(final String... extraBeanPackages) {
+        String[] locations = new String[] { DEFAULT_BEANS_LOCATION };
+        for (int i = 0; extraBeanPackages != null && i < extraBeanPackages.length; i++) {
+            if (StringUtils.isNotBlank(extraBeanPackages[i])) {
+                locations = ArrayUtils.add(locations,
+                        "classpath*:" + extraBeanPackages[i].trim().replace('.', '/') + "/**/*.class");
+            }
+        }
+
+        objConv = build(locations);
+        beansLocations = locations;
+    }
+
+    /**
+     * @return time (in milliseconds) spent for last ObjectConverter build, -1 if not built yet
+     */
+    public static long getBuildTime() {
+        return buildTime;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ObjectConverter build(final String[] locations) {
+        final long start = System.currentTimeMillis();
+
+        final MetadataReaderClasspathResourceScanner scanner = new MetadataReaderClasspathResourceScanner();
+        scanner.setResourceLoader(new ClassPathXmlApplicationContext());
+
+        final ObjectConverter result;
+        try {
+            final String[] fallbackNodeTypes = ArrayUtils.add(
+                    ObjectConverterUtils.getDefaultFallbackNodeTypes(), "hippo:compound");
+
+            result = ObjectConverterUtils.createObjectConverter(
+                    ObjectConverterUtils.getAnnotatedClasses(scanner, locations),
+                    (Class<? extends HippoBean>[]) Constants.DEFAULT_BUILT_IN_MAPPING_CLASSES,
+                    fallbackNodeTypes, false);
+        } catch (Exception e) {
+            throw new SetupException("While creating HST ObjectConverter", e);
+        }
+
+        buildTime = System.currentTimeMillis() - start;
+        LOG.info("HST ObjectConverter built in {} ms from {}", buildTime, Arrays.toString(locations));
+
+        return result;
+    }
+}
@@ -0,0 +1,437 @@
+/*
+ * Copyright (C) 2012 Tirasa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.hct.repository;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.jcr.RepositoryException;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Size-bounded LRU cache whose entries depend on repository paths: any change at or under one of such paths, and any
+ * node added, removed or moved above one of such paths (as notified by {@link HCTRepositoryObserver}) removes the
+ * entry. Recent changes are logged, so that values computed while unrelated content changes can still be cached; the
+ * log size can be tuned via the <tt>net.tirasa.hct.cache.changeLogSize</tt> system property (default 1000).
+ * Size is the sum of entry weights: each entry weighs 1 unless {@link #weigh(java.lang.Object)} is overridden.
+ * Values holding external resources can release them by overriding {@link #onRemoval(java.lang.Object)}.
+ *
+ * @param <V> cached value type
+ */
+public class HCTPathInvalidatedCache<V> implements EventListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HCTPathInvalidatedCache.class);
+
+    private static final int CHANGE_LOG_SIZE = Integer.getInteger("net.tirasa.hct.cache.changeLogSize", 1000);
+
+    private final String name;
+
+    private final String observedPath;
+
+    private final long maxWeight;
+
+    private final Map<String, CacheEntry<V>> entries;
+
+    /**
+     * Sum of the weights of current entries, guarded by entries.
+     */
+    private long weight = 0;
+
+    private volatile boolean registered = false;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * Incremented at each change notification, whatever the paths involved.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * Latest change notifications, eldest first; guarded by entries.
+     */
+    private final LinkedList<Change> changeLog = new LinkedList<Change>();
+
+    public HCTPathInvalidatedCache(final String name, final String observedPath, final long maxWeight) {
+        this.name = name;
+        this.observedPath = observedPath;
+        this.maxWeight = maxWeight;
+        this.entries = new LinkedHashMap<String, CacheEntry<V>>(16, 0.75f, true);
+    }
+
+    /**
+     * @param value value to be cached
+     * @return weight of the given value, counted against the maximum weight of this cache
+     */
+    protected long weigh(final V value) {
+        return 1;
+    }
+
+    /**
+     * Invoked whenever a value leaves this cache - because of eviction, invalidation, removal or replacement by a
+     * different value; called while holding the cache lock, so it should return quickly.
+     *
+     * @param value removed value
+     */
+    protected void onRemoval(final V value) {
+        // nothing to release by default
+    }
+
+    private boolean doPut(final String key, final V value, final String... paths) {
+        final CacheEntry<V> entry = new CacheEntry<V>(value, weigh(value), paths);
+        if (entry.getWeight() > maxWeight) {
+            return false;
+        }
+
+        final CacheEntry<V> previous = entries.put(key, entry);
+        weight += entry.getWeight() - (previous == null ? 0 : previous.getWeight());
+        if (previous != null && !previous.getValue().equals(value)) {
+            onRemoval(previous.getValue());
+        }
+
+        // least recently used first
+        for (final Iterator<CacheEntry<V>> itor = entries.values().iterator();
+                weight > maxWeight && itor.hasNext();) {
+
+            final CacheEntry<V> evicted = itor.next();
+            weight -= evicted.getWeight();
+            itor.remove();
+            evictions.incrementAndGet();
+            onRemoval(evicted.getValue());
+        }
+
+        return true;
+    }
+
+    /**
+     * Registers this cache for change notifications under the observed path.
+     *
+     * @throws RepositoryException if registration fails
+     */
+    void register() throws RepositoryException {
+        HCTRepositoryObserver.addEventListener(this, observedPath);
+    }
+
+    private boolean ensureRegistered() {
+        if (!registered) {
+            synchronized (this) {
+                if (!registered) {
+                    try {
+                        register();
+                        registered = true;
+                    } catch (Exception e) {
+                        LOG.warn("Could not observe {}, {} cache disabled", new Object[] { observedPath, name, e });
+                    }
+                }
+            }
+        }
+        return registered;
+    }
+
+    public V get(final String key) {
+        final CacheEntry<V> entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.getValue();
+    }
+
+    /**
+     * @return current generation, to be taken before computing a value to be cached
+     * @see #put(java.lang.String, java.lang.Object, long, java.lang.String[])
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Caches the given value, provided that changes under the observed path can be notified.
+     *
+     * @param key key
+     * @param value value
+     * @param paths repository paths the given value depends on
+     * @return whether the given value was cached
+     */
+    public boolean put(final String key, final V value, final String... paths) {
+        if (value == null || !ensureRegistered()) {
+            return false;
+        }
+
+        synchronized (entries) {
+            return doPut(key, value, paths);
+        }
+    }
+
+    /**
+     * Caches the given value, unless any of the given paths changed since the given generation: in such case the
+     * value might have been computed from stale content.
+     *
+     * @param key key
+     * @param value value
+     * @param since generation taken before computing value
+     * @param paths repository paths the given value depends on
+     * @return whether the given value was cached
+     */
+    public boolean put(final String key, final V value, final long since, final String... paths) {
+        if (value == null || !ensureRegistered()) {
+            return false;
+        }
+
+        synchronized (entries) {
+            return !isChangedSince(since, paths) && doPut(key, value, paths);
+        }
+    }
+
+    /**
+     * @param since generation
+     * @param paths repository paths
+     * @return whether any of the given paths changed since the given generation - or whether it cannot be told, as
+     * the change log does not reach back enough
+     */
+    private boolean isChangedSince(final long since, final String... paths) {
+        if (generation.get() == since) {
+            return false;
+        }
+        if (changeLog.isEmpty() || changeLog.getFirst().getGeneration() > since + 1) {
+            return true;
+        }
+
+        for (final Iterator<Change> itor = changeLog.descendingIterator(); itor.hasNext();) {
+            final Change change = itor.next();
+            if (change.getGeneration() <= since) {
+                break;
+            }
+            if (affects(Arrays.asList(paths), change.getChangedPaths(), change.getStructuralPaths())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param paths repository paths
+     * @param changedPaths paths of nodes whose properties or descendants changed
+     * @param structuralPaths paths of nodes added, removed or moved
+     * @return whether any of the given paths is affected by the given changes
+     */
+    static boolean affects(final Collection<String> paths, final Set<String> changedPaths,
+            final Set<String> structuralPaths) {
+
+        for (String path : paths) {
+            final String pathPrefix = path.endsWith("/") ? path : path + "/";
+            for (String changedPath : changedPaths) {
+                if (path.equals(changedPath) || changedPath.startsWith(pathPrefix)) {
+                    return true;
+                }
+            }
+            for (String structuralPath : structuralPaths) {
+                if (path.equals(structuralPath) || structuralPath.startsWith(pathPrefix)
+                        || path.startsWith(structuralPath.endsWith("/") ? structuralPath : structuralPath + "/")) {
+
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public void remove(final String key) {
+        synchronized (entries) {
+            final CacheEntry<V> removed = entries.remove(key);
+            if (removed != null) {
+                weight -= removed.getWeight();
+                onRemoval(removed.getValue());
+            }
+        }
+    }
+
+    /**
+     * Removes all entries depending on any of the given paths, on any of their descendants or - for structural
+     * changes only - on any of their ancestors.
+     *
+     * @param changedPaths paths of nodes whose properties changed
+     * @param structuralPaths paths of nodes added, removed or moved
+     */
+    public void invalidate(final Set<String> changedPaths, final Set<String> structuralPaths) {
+        int removed = 0;
+        synchronized (entries) {
+            changeLog.addLast(new Change(generation.incrementAndGet(), changedPaths, structuralPaths));
+            if (changeLog.size() > CHANGE_LOG_SIZE) {
+                changeLog.removeFirst();
+            }
+
+            for (final Iterator<CacheEntry<V>> itor = entries.values().iterator(); itor.hasNext();) {
+                final CacheEntry<V> entry = itor.next();
+                if (affects(entry.getPaths(), changedPaths, structuralPaths)) {
+                    weight -= entry.getWeight();
+                    itor.remove();
+                    removed++;
+                    onRemoval(entry.getValue());
+                }
+            }
+        }
+
+        if (removed > 0) {
+            invalidations.addAndGet(removed);
+            LOG.debug("{} entries removed from {} cache after changes in {} {}",
+                    new Object[] { removed, name, changedPaths, structuralPaths });
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            for (CacheEntry<V> entry : entries.values()) {
+                onRemoval(entry.getValue());
+            }
+            entries.clear();
+            weight = 0;
+        }
+    }
+
+    @Override
+    public void onEvent(final EventIterator events) {
+        final Set<String> changedPaths = new HashSet<String>();
+        final Set<String> structuralPaths = new HashSet<String>();
+        while (events.hasNext()) {
+            final Event event = events.nextEvent();
+            try {
+                if (event.getType() == Event.PROPERTY_ADDED
+                        || event.getType() == Event.PROPERTY_CHANGED || event.getType() == Event.PROPERTY_REMOVED) {
+
+                    changedPaths.add(event.getPath().substring(0, event.getPath().lastIndexOf('/')));
+                } else {
+                    structuralPaths.add(event.getPath());
+                }
+            } catch (RepositoryException e) {
+                LOG.error("While reading event {}, clearing {} cache", new Object[] { event, name, e });
+                invalidate(Collections.<String>emptySet(), Collections.singleton("/"));
+                return;
+            }
+        }
+
+        invalidate(changedPaths, structuralPaths);
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getWeight() {
+        synchronized (entries) {
+            return weight;
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public double getHitRatio() {
+        final long total = hits.get() + misses.get();
+        return total == 0 ? 0 : (double) hits.get() / total;
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    private static class CacheEntry<V> {
+
+        private final V value;
+
+        private final long weight;
+
+        private final List<String> paths;
+
+        public CacheEntry(final V value, final long weight, final String... paths) {
+            this.value = value;
+            this.weight = weight;
+            this.paths = Arrays.asList(paths);
+        }
+
+        public V getValue() {
+            return value;
+        }
+
+        public long getWeight() {
+            return weight;
+        }
+
+        public List<String> getPaths() {
+            return paths;
+        }
+    }
+
+    private static class Change {
+
+        private final long generation;
+
+        private final Set<String> changedPaths;
+
+        private final Set<String> structuralPaths;
+
+        public Change(final long generation, final Set<String> changedPaths, final Set<String> structuralPaths) {
+            this.generation = generation;
+            this.changedPaths = new HashSet<String>(changedPaths);
+            this.structuralPaths = new HashSet<String>(structuralPaths);
+        }
+
+        public long getGeneration() {
+            return generation;
+        }
+
+        public Set<String> getChangedPaths() {
+            return changedPaths;
+        }
+
+        public Set<String> getStructuralPaths() {
+            return structuralPaths;
+        }
+    }
+}
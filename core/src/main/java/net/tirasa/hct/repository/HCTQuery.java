@@ -15,21 +15,27 @@
  */
 package net.tirasa.hct.repository;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.ValueFactory;
 import javax.jcr.query.InvalidQueryException;
 import javax.jcr.query.Query;
 import javax.jcr.query.RowIterator;
 import net.tirasa.hct.cocoon.sax.Constants;
 import net.tirasa.hct.cocoon.sax.Constants.Availability;
+import net.tirasa.hct.util.ContentTreeIndex;
 import org.apache.jackrabbit.JcrConstants;
 import org.hippoecm.repository.HippoStdNodeType;
 import org.hippoecm.repository.api.HippoNodeType;
@@ -47,8 +53,58 @@ public class HCTQuery extends HCTTraversal {
 
     }
 
+    /**
+     * How total result size is computed for paginated queries.
+     */
+    public enum CountMode {
+
+        /**
+         * Exact count, cached until any change under search base.
+         */
+        exact,
+        /**
+         * Count no further than a few pages ahead of the requested one.
+         */
+        approximate
+
+    }
+
     private static final Logger LOG = LoggerFactory.getLogger(HCTQuery.class);
 
+    private static final int APPROXIMATE_COUNT_PAGES =
+            Integer.getInteger("net.tirasa.hct.query.approximateCountPages", 10);
+
+    private static final String BIND_LOCALE = "locale";
+
+    private static final String BIND_AVAILABILITY = "availability";
+
+    private static final String BIND_TAXONOMY = "taxonomy";
+
+    private static final String BIND_CHILD_NAME = "childName";
+
+    private static final int TEMPLATES_SIZE = Integer.getInteger("net.tirasa.hct.query.templatesSize", 500);
+
+    /**
+     * Statements by query shape: bind variable placeholders in place of values.
+     */
+    private static final Map<String, String> TEMPLATES = new LinkedHashMap<String, String>(16, 0.75f, true) {
+
+        private static final long serialVersionUID = 6034466390125722047L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, String> eldest) {
+            return size() > TEMPLATES_SIZE;
+        }
+    };
+
+    /**
+     * Total result sizes by query key; since dates bound from query functions are truncated by
+     * {@link QueryFunction#calendar(String)}, keys of statements relative to the current time are stable within the
+     * configured granularity.
+     */
+    private static final HCTPathInvalidatedCache<Long> COUNT_CACHE = new HCTPathInvalidatedCache<Long>(
+            "query count", "/content", Integer.getInteger("net.tirasa.hct.query.countCacheSize", 1000));
+
     private transient String returnType;
 
     private long page;
@@ -65,12 +121,21 @@ public class HCTQuery extends HCTTraversal {
 
     private boolean includeFolders = false;
 
+    private CountMode countMode = CountMode.exact;
+
+    /**
+     * Number of result items to be hydrated concurrently; 1 means sequentially, on the calling thread.
+     */
+    private int concurrency = 1;
+
     private final transient HCTQueryFilter filter;
 
     private final transient StringBuilder orderBy;
 
     private transient String sqlQuery;
 
+    private final transient Map<String, Value> bindValues;
+
     private final transient Map<String, String> taxonomies;
 
     private transient Session session;
@@ -82,6 +147,7 @@ public class HCTQuery extends HCTTraversal {
         filter = new HCTQueryFilter();
         orderBy = new StringBuilder();
         taxonomies = new HashMap<String, String>();
+        bindValues = new LinkedHashMap<String, Value>();
     }
 
     public boolean isIncludeFolders() {
@@ -92,6 +158,22 @@ public class HCTQuery extends HCTTraversal {
         this.includeFolders = includeFolders;
     }
 
+    public CountMode getCountMode() {
+        return countMode;
+    }
+
+    public void setCountMode(final CountMode countMode) {
+        this.countMode = countMode;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    public void setConcurrency(final int concurrency) {
+        this.concurrency = concurrency;
+    }
+
     public long getPage() {
         return page;
     }
@@ -178,31 +260,167 @@ public class HCTQuery extends HCTTraversal {
         this.session = session;
     }
 
+    /**
+     * Builds the statement to be executed, and the values to bind.
+     *
+     * @param locale locale
+     * @param availability availability
+     * @throws RepositoryException if anything goes wrong while building
+     */
+    public void prepare(final Locale locale, final Availability availability) throws RepositoryException {
+        buildSQLQuery(locale, availability);
+        LOG.debug("Elaborated JCR/SQL2 query: {}", getSQLQuery());
+    }
+
     public HCTQueryResult execute(final Locale locale, final Availability availability)
             throws RepositoryException {
 
-        buildSQLQuery(locale, availability);
-        LOG.debug("Elaborated JCR/SQL2 query: {}", getSQLQuery());
+        prepare(locale, availability);
+        return executePrepared(locale);
+    }
+
+    /**
+     * Executes the statement built by the latest call to {@link #prepare(java.util.Locale,
+     * net.tirasa.hct.cocoon.sax.Constants.Availability)}.
+     *
+     * @param locale locale
+     * @return query result
+     * @throws RepositoryException if anything goes wrong while executing
+     */
+    public HCTQueryResult executePrepared(final Locale locale) throws RepositoryException {
+        return executePrepared(locale, false);
+    }
+
+    /**
+     * Executes the statement built by the latest call to {@link #prepare(java.util.Locale,
+     * net.tirasa.hct.cocoon.sax.Constants.Availability)}.
+     * When streaming is requested, the returned result reads rows while being iterated, provided that its size can be
+     * known upfront; otherwise all rows are read before returning.
+     *
+     * @param locale locale
+     * @param streaming whether rows should be read while iterating the returned result
+     * @return query result
+     * @throws RepositoryException if anything goes wrong while executing
+     */
+    public HCTQueryResult executePrepared(final Locale locale, final boolean streaming) throws RepositoryException {
         final Query query = session.getWorkspace().getQueryManager().createQuery(getSQLQuery(), Query.JCR_SQL2);
+        for (Map.Entry<String, Value> entry : bindValues.entrySet()) {
+            query.bindValue(entry.getKey(), entry.getValue());
+        }
+
+        if (page == 0 || size <= 0) {
+            if (size > 0) {
+                query.setLimit(size);
+            }
 
-        // first execute without boundaries (only to take total result size)
-        final long totalResultSize = page == 0 ? 0 : query.execute().getRows().getSize();
+            LOG.debug("About to execute {}", query.getStatement());
+            final RowIterator rows = query.execute().getRows();
+            return streaming && rows.getSize() != -1
+                    ? new HCTQueryResult(locale, page, 1L, rows, rows.getSize())
+                    : new HCTQueryResult(locale, page, 1L, rows);
+        }
 
-        // then execute with page and offset, for actual result - ONLY if size > 0 was provided
-        if (size > 0) {
-            query.setLimit(size);
-            if (page > 0) {
-                query.setOffset((page - 1) * size);
+        final long offset = (page - 1) * size;
+        final List<String> uuids = new ArrayList<String>();
+        final long totalResultSize;
+        if (countMode == CountMode.approximate) {
+            // look a few pages ahead: total is exact only if the end of result falls within such window
+            query.setLimit(size * APPROXIMATE_COUNT_PAGES);
+            query.setOffset(offset);
+
+            LOG.debug("About to execute {}", query.getStatement());
+            final RowIterator rows = query.execute().getRows();
+            totalResultSize = offset + readUuids(rows, uuids) + countRemaining(rows);
+        } else {
+            final Long cachedTotal = COUNT_CACHE.get(getQueryKey());
+            if (cachedTotal == null) {
+                // single execution without boundaries: take total from there, then skip to the requested page
+                final long generation = COUNT_CACHE.getGeneration();
+                LOG.debug("About to execute {}", query.getStatement());
+                final RowIterator rows = query.execute().getRows();
+                final long reportedSize = rows.getSize();
+
+                final long skipped = skip(rows, offset, reportedSize);
+                if (streaming && reportedSize != -1) {
+                    COUNT_CACHE.put(getQueryKey(), reportedSize, generation, getSearchPaths());
+                    return new HCTQueryResult(locale, page, getTotalPages(reportedSize), rows,
+                            Math.max(0, Math.min(size, reportedSize - skipped)));
+                }
+
+                final long read = readUuids(rows, uuids);
+                totalResultSize = reportedSize == -1
+                        ? skipped + read + countRemaining(rows)
+                        : reportedSize;
+
+                COUNT_CACHE.put(getQueryKey(), totalResultSize, generation, getSearchPaths());
+            } else {
+                query.setLimit(size);
+                query.setOffset(offset);
+
+                LOG.debug("About to execute {}", query.getStatement());
+                final RowIterator rows = query.execute().getRows();
+                if (streaming) {
+                    return new HCTQueryResult(locale, page, getTotalPages(cachedTotal), rows,
+                            rows.getSize() == -1
+                            ? Math.max(0, Math.min(size, cachedTotal - offset))
+                            : rows.getSize());
+                }
+
+                readUuids(rows, uuids);
+                totalResultSize = cachedTotal;
             }
         }
 
-        LOG.debug("About to execute {}", query.getStatement());
-        final RowIterator result = query.execute().getRows();
+        return new HCTQueryResult(locale, page, getTotalPages(totalResultSize), uuids);
+    }
 
-        final long totalPages = page == 0 ? 1L : (totalResultSize % size == 0
+    private long getTotalPages(final long totalResultSize) {
+        return totalResultSize % size == 0
                 ? totalResultSize / size
-                : totalResultSize / size + 1);
-        return new HCTQueryResult(locale, page, totalPages, result);
+                : totalResultSize / size + 1;
+    }
+
+    private long skip(final RowIterator rows, final long count, final long reportedSize) {
+        if (reportedSize != -1) {
+            final long skipped = Math.min(count, reportedSize);
+            rows.skip(skipped);
+            return skipped;
+        }
+
+        long skipped = 0;
+        while (skipped < count && rows.hasNext()) {
+            rows.nextRow();
+            skipped++;
+        }
+        return skipped;
+    }
+
+    private long readUuids(final RowIterator rows, final List<String> uuids) throws RepositoryException {
+        long read = 0;
+        while (read < size && rows.hasNext()) {
+            uuids.add(rows.nextRow().getValue(Constants.QUERY_DEFAULT_SELECTOR + "." + JcrConstants.JCR_UUID).
+                    getString());
+            read++;
+        }
+        return read;
+    }
+
+    private long countRemaining(final RowIterator rows) {
+        long remaining = 0;
+        while (rows.hasNext()) {
+            rows.nextRow();
+            remaining++;
+        }
+        return remaining;
+    }
+
+    /**
+     * @return paths under which any change might affect the result of this query
+     */
+    public String[] getSearchPaths() {
+        return getType() == Type.TAXONOMY_DOCS
+                ? new String[] { "/content/documents", base }
+                : new String[] { base };
     }
 
     public Map<String, String> getTaxonomies() {
@@ -261,74 +479,61 @@ public class HCTQuery extends HCTTraversal {
             final StringBuilder query, final StringBuilder whereClause, final StringBuilder andCondClause,
             final StringBuilder orCondClause) {
 
+        int childIndex = 0;
         for (Map.Entry<HCTDocumentChildNode, HCTQueryFilter.ChildQueryFilter> entry : children.entrySet()) {
             query.append("INNER JOIN [").append(entry.getKey().getType()).append("] AS ").
                     append(entry.getKey().getSelector()).append(" ON ISCHILDNODE(").append(entry.getKey().getSelector()).
                     append(", ").append(Constants.QUERY_DEFAULT_SELECTOR).append(") ");
 
             whereClause.insert(0, '(');
-            whereClause.append("AND NAME(").append(entry.getKey().getSelector()).append(") = '").
-                    append(entry.getKey().getName()).append("') ");
+            whereClause.append("AND NAME(").append(entry.getKey().getSelector()).append(") = $").
+                    append(BIND_CHILD_NAME).append(childIndex++).append(") ");
 
             addCondsToWhereClause(entry.getValue().getAndConds(), andCondClause, "AND");
             addCondsToWhereClause(entry.getValue().getOrConds(), orCondClause, "OR");
         }
     }
 
-    private void buildSQLQuery(final Locale locale, final Availability availability) throws RepositoryException {
-        LOG.debug("Query type: {}", getType());
-        final String actualBase = getType() == Type.TAXONOMY_DOCS ? "/content/documents" : base;
-        LOG.debug("Search base: {}", actualBase);
+    private static String quote(final String literal) {
+        return "'" + literal.replace("'", "''") + "'";
+    }
 
+    private String buildTemplate(final String actualBase, final Set<String> depthFrontier) {
         final StringBuilder whereClause =
-                new StringBuilder("ISDESCENDANTNODE(").append(Constants.QUERY_DEFAULT_SELECTOR).append(", '").
-                append(actualBase).append("') ");
+                new StringBuilder("ISDESCENDANTNODE(").append(Constants.QUERY_DEFAULT_SELECTOR).append(", ").
+                append(quote(actualBase)).append(") ");
 
-        final Node baseNode = session.getNode(actualBase);
         if (getType() == Type.TAXONOMY_DOCS) {
-            final Node taxonomyBaseNode = session.getNode(base);
-            if (!TaxonomyNodeTypes.NODETYPE_HIPPOTAXONOMY_CATEGORY.equals(
-                    taxonomyBaseNode.getPrimaryNodeType().getName())) {
-
-                throw new InvalidQueryException(base + " is not of type "
-                        + TaxonomyNodeTypes.NODETYPE_HIPPOTAXONOMY_CATEGORY);
-            }
-
-            taxonomies.clear();
-            findTaxonomies(taxonomyBaseNode, depth > 0 ? taxonomyBaseNode.getDepth() + depth - 1 : Integer.MAX_VALUE);
             final StringBuilder taxonomySubclause = new StringBuilder();
-            for (String taxonomy : taxonomies.keySet()) {
+            for (int i = 0; i < taxonomies.size(); i++) {
                 if (taxonomySubclause.length() > 0) {
                     taxonomySubclause.append("OR ");
                 }
 
                 taxonomySubclause.insert(0, '(');
                 taxonomySubclause.append(Constants.QUERY_DEFAULT_SELECTOR).append('.').append('[').
-                        append(TaxonomyNodeTypes.HIPPOTAXONOMY_KEYS).append("] = '").append(taxonomy).append("') ");
+                        append(TaxonomyNodeTypes.HIPPOTAXONOMY_KEYS).append("] = $").append(BIND_TAXONOMY).append(i).
+                        append(") ");
             }
             whereClause.insert(0, '(');
             whereClause.append("AND ").append(taxonomySubclause).append(") ");
-
-            LOG.debug("Searching with taxonomies: {}", taxonomies);
-        } else if (depth > 0) {
-            final Set<String> depthFrontier = new HashSet<String>();
-            findDepthFrontier(baseNode, depthFrontier, baseNode.getDepth() + depth);
+        } else {
             for (String depthFrontierPath : depthFrontier) {
                 whereClause.insert(0, '(');
-                whereClause.append("AND NOT ISDESCENDANTNODE(").append(Constants.QUERY_DEFAULT_SELECTOR).append(",'").
-                        append(depthFrontierPath).append("')) ");
+                whereClause.append("AND NOT ISDESCENDANTNODE(").append(Constants.QUERY_DEFAULT_SELECTOR).append(",").
+                        append(quote(depthFrontierPath)).append(")) ");
             }
         }
 
         // locale
         whereClause.insert(0, '(');
         whereClause.append("AND ").append(Constants.QUERY_DEFAULT_SELECTOR).append('.').append('[').
-                append(HippoTranslationNodeType.LOCALE).append("] = '").append(locale).append("') ");
+                append(HippoTranslationNodeType.LOCALE).append("] = $").append(BIND_LOCALE).append(") ");
 
         // availability
         whereClause.insert(0, '(');
         whereClause.append("AND ").append(Constants.QUERY_DEFAULT_SELECTOR).append('.').append('[').
-                append(HippoNodeType.HIPPO_AVAILABILITY).append("] = '").append(availability.name()).append("') ");
+                append(HippoNodeType.HIPPO_AVAILABILITY).append("] = $").append(BIND_AVAILABILITY).append(") ");
 
         final StringBuilder andCondClause = new StringBuilder();
         final StringBuilder orCondClause = new StringBuilder();
@@ -354,7 +559,87 @@ public class HCTQuery extends HCTTraversal {
             query.append("ORDER BY ").append(orderBy.toString().substring(0, orderBy.length() - 2));
         }
 
-        sqlQuery = query.toString();
+        return query.toString();
+    }
+
+    private void buildSQLQuery(final Locale locale, final Availability availability) throws RepositoryException {
+        LOG.debug("Query type: {}", getType());
+        final String actualBase = getType() == Type.TAXONOMY_DOCS ? "/content/documents" : base;
+        LOG.debug("Search base: {}", actualBase);
+
+        final ValueFactory valueFactory = session.getValueFactory();
+
+        bindValues.clear();
+        bindValues.putAll(filter.getBindValues());
+        bindValues.put(BIND_LOCALE, valueFactory.createValue(locale.toString()));
+        bindValues.put(BIND_AVAILABILITY, valueFactory.createValue(availability.name()));
+        int childIndex = 0;
+        for (HCTDocumentChildNode child : filter.getChildConds().keySet()) {
+            bindValues.put(BIND_CHILD_NAME + childIndex++, valueFactory.createValue(child.getName()));
+        }
+
+        final Node baseNode = session.getNode(actualBase);
+        final Set<String> depthFrontier = new TreeSet<String>();
+        if (getType() == Type.TAXONOMY_DOCS) {
+            final Node taxonomyBaseNode = session.getNode(base);
+            if (!TaxonomyNodeTypes.NODETYPE_HIPPOTAXONOMY_CATEGORY.equals(
+                    taxonomyBaseNode.getPrimaryNodeType().getName())) {
+
+                throw new InvalidQueryException(base + " is not of type "
+                        + TaxonomyNodeTypes.NODETYPE_HIPPOTAXONOMY_CATEGORY);
+            }
+
+            taxonomies.clear();
+            final int targetDepth = depth > 0 ? taxonomyBaseNode.getDepth() + depth - 1 : Integer.MAX_VALUE;
+            if (ContentTreeIndex.isIndexed(base)) {
+                taxonomies.putAll(ContentTreeIndex.getInstance().getTaxonomies(session, base, targetDepth));
+            } else {
+                findTaxonomies(taxonomyBaseNode, targetDepth);
+            }
+            int taxonomyIndex = 0;
+            for (String taxonomy : taxonomies.keySet()) {
+                bindValues.put(BIND_TAXONOMY + taxonomyIndex++, valueFactory.createValue(taxonomy));
+            }
+
+            LOG.debug("Searching with taxonomies: {}", taxonomies);
+        } else if (depth > 0) {
+            if (ContentTreeIndex.isIndexed(actualBase)) {
+                depthFrontier.addAll(ContentTreeIndex.getInstance().
+                        getDepthFrontier(session, actualBase, baseNode.getDepth() + depth));
+            } else {
+                findDepthFrontier(baseNode, depthFrontier, baseNode.getDepth() + depth);
+            }
+        }
+
+        // values are all bound: the statement only depends on the query shape
+        final String shape = new StringBuilder(returnType).append('|').append(actualBase).append('|').
+                append(getType() == Type.TAXONOMY_DOCS ? taxonomies.size() : depthFrontier).append('|').
+                append(filter.getShape()).append('|').append(orderBy).toString();
+        synchronized (TEMPLATES) {
+            sqlQuery = TEMPLATES.get(shape);
+        }
+        if (sqlQuery == null) {
+            sqlQuery = buildTemplate(actualBase, depthFrontier);
+            synchronized (TEMPLATES) {
+                TEMPLATES.put(shape, sqlQuery);
+            }
+        }
+    }
+
+    /**
+     * @return key identifying the latest built statement together with its bound values
+     * @throws RepositoryException if any bound value cannot be read
+     */
+    public String getQueryKey() throws RepositoryException {
+        final StringBuilder key = new StringBuilder(sqlQuery);
+        for (Map.Entry<String, Value> entry : bindValues.entrySet()) {
+            key.append('|').append(entry.getKey()).append('=').append(entry.getValue().getString());
+        }
+        return key.toString();
+    }
+
+    public Map<String, Value> getBindValues() {
+        return bindValues;
     }
 
     public String getSQLQuery() {
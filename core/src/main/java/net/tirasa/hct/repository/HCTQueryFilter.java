@@ -16,25 +16,34 @@
 package net.tirasa.hct.repository;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import javax.jcr.RepositoryException;
+import javax.jcr.Value;
 import net.tirasa.hct.cocoon.sax.Constants;
 import net.tirasa.hct.cocoon.sax.Constants.Attribute;
 import net.tirasa.hct.cocoon.sax.Constants.Element;
 import net.tirasa.hct.cocoon.sax.Constants.State;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.jackrabbit.value.ValueFactoryImpl;
 import org.xml.sax.Attributes;
 
+/**
+ * Filter conditions, as JCR/SQL2 fragments referencing bind variables: actual values are kept aside.
+ */
 public class HCTQueryFilter {
 
+    private static final String BIND_PREFIX = "v";
+
     private final List<String> andConds = new ArrayList<String>();
 
     private final List<String> orConds = new ArrayList<String>();
 
     private final Map<HCTDocumentChildNode, ChildQueryFilter> childConds =
-            new HashMap<HCTDocumentChildNode, ChildQueryFilter>();
+            new LinkedHashMap<HCTDocumentChildNode, ChildQueryFilter>();
+
+    private final Map<String, Value> bindValues = new LinkedHashMap<String, Value>();
 
     public void addCond(final State state, final Element element, final Attributes atts) throws RepositoryException {
         if (state != State.INSIDE_FILTER_AND && state != State.INSIDE_FILTER_OR) {
@@ -132,6 +141,12 @@ public class HCTQueryFilter {
         }
     }
 
+    private String bind(final Value value) {
+        final String name = BIND_PREFIX + bindValues.size();
+        bindValues.put(name, value);
+        return "$" + name;
+    }
+
     private String buildComparableValue(final Attributes atts) throws RepositoryException {
         String propTypeString = atts.getValue(Constants.Attribute.TYPE.getName());
         if (StringUtils.isBlank(propTypeString)) {
@@ -140,24 +155,24 @@ public class HCTQueryFilter {
         final Constants.PropertyType propType = Constants.PropertyType.valueOf(propTypeString);
 
         final String value = atts.getValue(Attribute.VALUE.getName());
-        String result;
+        Value result;
         switch (propType) {
             case BOOLEAN:
             case DOUBLE:
             case LONG:
-                result = "CAST('" + value + "' AS " + propType.name() + ")";
+                result = ValueFactoryImpl.getInstance().createValue(value, propType.getId());
                 break;
 
             case DATE:
-                result = "CAST('" + QueryFunction.call(value) + "' AS " + propType.name() + ")";
+                result = ValueFactoryImpl.getInstance().createValue(QueryFunction.calendar(value));
                 break;
 
             case STRING:
             default:
-                result = "'" + value + "'";
+                result = ValueFactoryImpl.getInstance().createValue(value);
         }
 
-        return result;
+        return bind(result);
     }
 
     private String getEqualTo(final Attributes atts, final String selector) throws RepositoryException {
@@ -182,7 +197,8 @@ public class HCTQueryFilter {
             result.append('[').append(atts.getValue(Attribute.FIELD.getName())).append(']');
         }
 
-        result.append(", '").append(atts.getValue(Attribute.VALUE.getName())).append("')");
+        result.append(", ").append(bind(ValueFactoryImpl.getInstance().createValue(
+                atts.getValue(Attribute.VALUE.getName())))).append(')');
 
         return result.toString();
     }
@@ -194,7 +210,8 @@ public class HCTQueryFilter {
     private String getLike(final Attributes atts, final String selector) {
         return new StringBuilder().append(selector).append('.').append('[').
                 append(atts.getValue(Attribute.FIELD.getName())).append(']').
-                append(" LIKE '%").append(atts.getValue(Attribute.VALUE.getName())).append("%'").toString();
+                append(" LIKE ").append(bind(ValueFactoryImpl.getInstance().createValue(
+                "%" + atts.getValue(Attribute.VALUE.getName()) + "%"))).toString();
     }
 
     private String getNotLike(final Attributes atts, final String selector) {
@@ -239,6 +256,25 @@ public class HCTQueryFilter {
         return andConds;
     }
 
+    /**
+     * @return values for the bind variables referenced by conditions, by variable name
+     */
+    public Map<String, Value> getBindValues() {
+        return bindValues;
+    }
+
+    /**
+     * @return string identifying the structure of this filter, regardless of bound values
+     */
+    public String getShape() {
+        final StringBuilder shape = new StringBuilder().append(andConds).append(orConds);
+        for (Map.Entry<HCTDocumentChildNode, ChildQueryFilter> entry : childConds.entrySet()) {
+            shape.append(entry.getKey().getType()).append(entry.getKey().getSelector()).
+                    append(entry.getValue().getAndConds()).append(entry.getValue().getOrConds());
+        }
+        return shape.toString();
+    }
+
     public List<String> getOrConds() {
         return orConds;
     }
@@ -16,14 +16,29 @@
 package net.tirasa.hct.repository;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.NoSuchElementException;
 import javax.jcr.RepositoryException;
 import javax.jcr.query.RowIterator;
 import net.tirasa.hct.cocoon.sax.Constants;
+import org.apache.cocoon.pipeline.ProcessingException;
 import org.apache.jackrabbit.JcrConstants;
 
-public class HCTQueryResult {
+/**
+ * Matching UUIDs: either read all at construction time or, in streaming mode, read from the underlying rows only
+ * while iterating.
+ */
+public class HCTQueryResult implements Iterable<String> {
+
+    /**
+     * Notified once all UUIDs have been read.
+     */
+    public interface CompletionListener {
+
+        void onComplete(HCTQueryResult result);
+    }
 
     private transient final Locale locale;
 
@@ -33,6 +48,15 @@ public class HCTQueryResult {
 
     private transient final List<String> uuids;
 
+    private transient final long size;
+
+    /**
+     * Rows still to be read in streaming mode, null otherwise.
+     */
+    private transient RowIterator rows;
+
+    private transient CompletionListener listener;
+
     public HCTQueryResult(final Locale locale, final long page, final long totalPages,
             final RowIterator result) throws RepositoryException {
 
@@ -42,9 +66,74 @@ public class HCTQueryResult {
 
         this.uuids = new ArrayList<String>();
         while (result.hasNext()) {
-            this.uuids.add(result.nextRow().
-                    getValue(Constants.QUERY_DEFAULT_SELECTOR + "." + JcrConstants.JCR_UUID).getString());
+            this.uuids.add(getUuid(result));
+        }
+        this.size = uuids.size();
+    }
+
+    public HCTQueryResult(final Locale locale, final long page, final long totalPages, final List<String> uuids) {
+        this.locale = locale;
+        this.page = page;
+        this.totalPages = totalPages;
+        this.uuids = uuids;
+        this.size = uuids.size();
+    }
+
+    /**
+     * Streaming mode: UUIDs are read from the given rows while iterating.
+     *
+     * @param locale locale
+     * @param page page
+     * @param totalPages total pages
+     * @param rows rows, positioned at the first one to be read
+     * @param size number of rows to be read
+     */
+    public HCTQueryResult(final Locale locale, final long page, final long totalPages, final RowIterator rows,
+            final long size) {
+
+        this.locale = locale;
+        this.page = page;
+        this.totalPages = totalPages;
+        this.uuids = new ArrayList<String>();
+        this.rows = rows;
+        this.size = size;
+    }
+
+    private static String getUuid(final RowIterator rows) throws RepositoryException {
+        return rows.nextRow().getValue(Constants.QUERY_DEFAULT_SELECTOR + "." + JcrConstants.JCR_UUID).getString();
+    }
+
+    private boolean readNext() {
+        if (rows != null && uuids.size() < size && rows.hasNext()) {
+            try {
+                uuids.add(getUuid(rows));
+                return true;
+            } catch (RepositoryException e) {
+                throw new ProcessingException("While reading query result", e);
+            }
+        }
+
+        if (rows != null) {
+            rows = null;
+            if (listener != null) {
+                listener.onComplete(this);
+            }
         }
+        return false;
+    }
+
+    /**
+     * @param listener listener to be notified once all UUIDs have been read; immediately if already done
+     */
+    public void setCompletionListener(final CompletionListener listener) {
+        this.listener = listener;
+        if (rows == null) {
+            listener.onComplete(this);
+        }
+    }
+
+    public boolean isStreaming() {
+        return rows != null;
     }
 
     public Locale getLocale() {
@@ -55,11 +144,52 @@ public class HCTQueryResult {
         return page;
     }
 
+    /**
+     * @return number of UUIDs, known in advance in streaming mode as well
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * In streaming mode, reads all remaining rows first.
+     *
+     * @return matching UUIDs
+     */
     public List<String> getUuids() {
+        while (readNext()) {
+            // read all remaining rows
+        }
         return uuids;
     }
 
     public long getTotalPages() {
         return totalPages;
     }
+
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+
+            private int index = 0;
+
+            @Override
+            public boolean hasNext() {
+                return index < uuids.size() || readNext();
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return uuids.get(index++);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
 }
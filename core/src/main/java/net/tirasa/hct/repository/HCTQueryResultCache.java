@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2012 Tirasa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.hct.repository;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Locale;
+import javax.jcr.RepositoryException;
+import net.tirasa.hct.cocoon.sax.Constants.Availability;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache of query results (matching UUIDs and total pages), keyed by statement, bound values (including locale and
+ * availability), page, size and count mode. Entries are removed upon any change under the search paths of the
+ * originating query, including publication and depublication. Dates bound from query functions are truncated to
+ * the granularity set via the <tt>net.tirasa.hct.query.dateGranularity</tt> system property, so that statements
+ * relative to the current time keep hitting the cache within that interval. Size can be tuned via the
+ * <tt>net.tirasa.hct.query.resultCacheSize</tt> system property.
+ */
+public final class HCTQueryResultCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HCTQueryResultCache.class);
+
+    private static final HCTPathInvalidatedCache<HCTQueryResult> CACHE = new HCTPathInvalidatedCache<HCTQueryResult>(
+            "query result", "/content", Integer.getInteger("net.tirasa.hct.query.resultCacheSize", 500));
+
+    private HCTQueryResultCache() {
+    }
+
+    public static HCTQueryResult execute(final HCTQuery query, final Locale locale, final Availability availability)
+            throws RepositoryException {
+
+        return execute(query, locale, availability, false);
+    }
+
+    /**
+     * Executes the given query, unless its result is already cached.
+     * When streaming, the result is cached only once all of its rows have been read.
+     *
+     * @param query query
+     * @param locale locale
+     * @param availability availability
+     * @param streaming whether rows should be read while iterating the returned result, when not cached
+     * @return query result
+     * @throws RepositoryException if anything goes wrong while executing
+     */
+    public static HCTQueryResult execute(final HCTQuery query, final Locale locale, final Availability availability,
+            final boolean streaming) throws RepositoryException {
+
+        query.prepare(locale, availability);
+
+        final String key = new StringBuilder(query.getQueryKey()).append('|').append(query.getPage()).append('|').
+                append(query.getSize()).append('|').append(query.getCountMode()).toString();
+
+        HCTQueryResult result = CACHE.get(key);
+        if (result == null) {
+            final long generation = CACHE.getGeneration();
+            final String[] searchPaths = query.getSearchPaths();
+
+            result = query.executePrepared(locale, streaming);
+            result.setCompletionListener(new HCTQueryResult.CompletionListener() {
+
+                @Override
+                public void onComplete(final HCTQueryResult executed) {
+                    CACHE.put(key, new HCTQueryResult(executed.getLocale(), executed.getPage(),
+                            executed.getTotalPages(), Collections.unmodifiableList(
+                                    new ArrayList<String>(executed.getUuids()))), generation, searchPaths);
+                }
+            });
+        } else {
+            LOG.debug("Query result found in cache for {}", key);
+        }
+
+        return result;
+    }
+
+    public static int size() {
+        return CACHE.size();
+    }
+
+    public static long getHits() {
+        return CACHE.getHits();
+    }
+
+    public static long getMisses() {
+        return CACHE.getMisses();
+    }
+
+    public static double getHitRatio() {
+        return CACHE.getHitRatio();
+    }
+
+    public static long getEvictions() {
+        return CACHE.getEvictions();
+    }
+
+    public static long getInvalidations() {
+        return CACHE.getInvalidations();
+    }
+
+    public static void clear() {
+        CACHE.clear();
+    }
+}
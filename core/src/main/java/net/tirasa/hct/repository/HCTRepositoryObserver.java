@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2012 Tirasa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.hct.repository;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.jcr.Credentials;
+import javax.jcr.Repository;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventListener;
+import org.apache.cocoon.pipeline.SetupException;
+import org.hippoecm.hst.site.HstServices;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Long-lived session dedicated to JCR observation, shared by all in-memory structures that need to be kept in sync
+ * with repository changes.
+ */
+public final class HCTRepositoryObserver {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HCTRepositoryObserver.class);
+
+    public static final int ALL_EVENT_TYPES = Event.NODE_ADDED | Event.NODE_REMOVED | Event.NODE_MOVED
+            | Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED;
+
+    private static final Map<EventListener, String> LISTENERS = new LinkedHashMap<EventListener, String>();
+
+    private static Session session;
+
+    private HCTRepositoryObserver() {
+    }
+
+    private static void register(final EventListener listener, final String absPath) throws RepositoryException {
+        session.getWorkspace().getObservationManager().
+                addEventListener(listener, ALL_EVENT_TYPES, absPath, true, null, null, true);
+    }
+
+    private static void ensureSession() throws RepositoryException {
+        if (session == null || !session.isLive()) {
+            if (!HstServices.isAvailable()) {
+                throw new SetupException("HstServices not available");
+            }
+
+            final Credentials credentials = HstServices.getComponentManager().
+                    getComponent(Credentials.class.getName() + ".default");
+            final Repository repository = HstServices.getComponentManager().
+                    getComponent(Repository.class.getName());
+            session = repository.login(credentials);
+
+            // a new session was created: registrations made on the previous one (if any) are gone
+            for (Map.Entry<EventListener, String> entry : LISTENERS.entrySet()) {
+                register(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Registers the given listener for all node and property events under the given path.
+     *
+     * @param listener listener
+     * @param absPath path to observe (deep)
+     * @throws RepositoryException if registration fails
+     */
+    public static synchronized void addEventListener(final EventListener listener, final String absPath)
+            throws RepositoryException {
+
+        if (LISTENERS.containsKey(listener)) {
+            return;
+        }
+
+        ensureSession();
+        register(listener, absPath);
+        LISTENERS.put(listener, absPath);
+
+        LOG.debug("Listener {} registered for {}", listener, absPath);
+    }
+
+    public static synchronized void removeEventListener(final EventListener listener) {
+        if (LISTENERS.remove(listener) != null && session != null && session.isLive()) {
+            try {
+                session.getWorkspace().getObservationManager().removeEventListener(listener);
+            } catch (RepositoryException e) {
+                LOG.error("While removing listener {}", listener, e);
+            }
+        }
+    }
+
+    public static synchronized void close() {
+        LISTENERS.clear();
+        if (session != null) {
+            session.logout();
+            session = null;
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2012 Tirasa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.hct.repository;
+
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.jcr.Credentials;
+import javax.jcr.Repository;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import org.apache.cocoon.pipeline.SetupException;
+import org.hippoecm.hst.site.HstServices;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded pool of JCR sessions, one pool per HST credentials component.
+ * Sizing can be tuned via the <tt>net.tirasa.hct.sessionPool.maxActive</tt>,
+ * <tt>net.tirasa.hct.sessionPool.maxWait</tt> (ms) and <tt>net.tirasa.hct.sessionPool.maxIdleTime</tt> (ms)
+ * system properties.
+ */
+public final class HCTSessionPool {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HCTSessionPool.class);
+
+    private static final int MAX_ACTIVE = Integer.getInteger("net.tirasa.hct.sessionPool.maxActive", 20);
+
+    private static final long MAX_WAIT = Long.getLong("net.tirasa.hct.sessionPool.maxWait", 5000L);
+
+    private static final long MAX_IDLE_TIME = Long.getLong("net.tirasa.hct.sessionPool.maxIdleTime", 60000L);
+
+    private static final ConcurrentMap<String, HCTSessionPool> POOLS =
+            new ConcurrentHashMap<String, HCTSessionPool>();
+
+    private final String credentialsName;
+
+    private final Repository repository;
+
+    private final Credentials credentials;
+
+    private final Semaphore permits = new Semaphore(MAX_ACTIVE, true);
+
+    /**
+     * Idle sessions: most recently returned first, so that eviction can start from the tail.
+     */
+    private final BlockingDeque<IdleSession> idle = new LinkedBlockingDeque<IdleSession>();
+
+    private final AtomicLong borrows = new AtomicLong();
+
+    private final AtomicLong waits = new AtomicLong();
+
+    private final AtomicLong creations = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    public static HCTSessionPool getInstance(final String credentialsName) {
+        HCTSessionPool pool = POOLS.get(credentialsName);
+        if (pool == null) {
+            if (!HstServices.isAvailable()) {
+                throw new SetupException("HstServices not available");
+            }
+
+            final HCTSessionPool newPool = new HCTSessionPool(credentialsName,
+                    HstServices.getComponentManager().<Repository>getComponent(Repository.class.getName()),
+                    HstServices.getComponentManager().<Credentials>getComponent(credentialsName));
+            pool = POOLS.putIfAbsent(credentialsName, newPool);
+            if (pool == null) {
+                pool = newPool;
+            }
+        }
+
+        return pool;
+    }
+
+    /**
+     * Logs out all idle sessions, from all pools.
+     */
+    public static void closeAll() {
+        for (HCTSessionPool pool : POOLS.values()) {
+            pool.close();
+        }
+    }
+
+    private HCTSessionPool(final String credentialsName, final Repository repository,
+            final Credentials credentials) {
+
+        this.credentialsName = credentialsName;
+        this.repository = repository;
+        this.credentials = credentials;
+    }
+
+    /**
+     * @return maximum number of sessions borrowed at the same time, from each pool
+     */
+    public static int getMaxActive() {
+        return MAX_ACTIVE;
+    }
+
+    public Repository getRepository() {
+        return repository;
+    }
+
+    public Session borrow() throws RepositoryException {
+        borrows.incrementAndGet();
+
+        if (!permits.tryAcquire()) {
+            waits.incrementAndGet();
+
+            boolean acquired = false;
+            try {
+                acquired = permits.tryAcquire(MAX_WAIT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (!acquired) {
+                throw new SetupException("No session available for " + credentialsName
+                        + " after waiting " + MAX_WAIT + " ms");
+            }
+        }
+
+        evictIdle();
+
+        for (IdleSession idleSession = idle.pollFirst(); idleSession != null; idleSession = idle.pollFirst()) {
+            if (idleSession.getSession().isLive()) {
+                return idleSession.getSession();
+            }
+
+            LOG.debug("Discarding idle session for {}, no longer live", credentialsName);
+            idleSession.getSession().logout();
+            evictions.incrementAndGet();
+        }
+
+        try {
+            final Session session = repository.login(credentials);
+            creations.incrementAndGet();
+            return session;
+        } catch (RepositoryException e) {
+            permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    public void release(final Session session) {
+        try {
+            if (session.isLive()) {
+                session.refresh(false);
+                idle.offerFirst(new IdleSession(session));
+            }
+        } catch (RepositoryException e) {
+            LOG.error("While refreshing session for {}, discarding", credentialsName, e);
+            session.logout();
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void evictIdle() {
+        final long threshold = System.currentTimeMillis() - MAX_IDLE_TIME;
+        for (IdleSession eldest = idle.pollLast(); eldest != null; eldest = idle.pollLast()) {
+            if (eldest.getReturned() < threshold) {
+                eldest.getSession().logout();
+                evictions.incrementAndGet();
+            } else {
+                idle.offerLast(eldest);
+                break;
+            }
+        }
+    }
+
+    public void close() {
+        for (IdleSession idleSession = idle.pollFirst(); idleSession != null; idleSession = idle.pollFirst()) {
+            idleSession.getSession().logout();
+        }
+    }
+
+    public long getBorrows() {
+        return borrows.get();
+    }
+
+    public long getWaits() {
+        return waits.get();
+    }
+
+    public long getCreations() {
+        return creations.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public int getIdle() {
+        return idle.size();
+    }
+
+    public int getActive() {
+        return MAX_ACTIVE - permits.availablePermits();
+    }
+
+    private static class IdleSession {
+
+        private final Session session;
+
+        private final long returned;
+
+        public IdleSession(final Session session) {
+            this.session = session;
+            this.returned = System.currentTimeMillis();
+        }
+
+        public Session getSession() {
+            return session;
+        }
+
+        public long getReturned() {
+            return returned;
+        }
+    }
+}
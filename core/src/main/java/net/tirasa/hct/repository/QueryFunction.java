@@ -19,8 +19,6 @@
 package net.tirasa.hct.repository;
 
 import java.util.Calendar;
-import javax.jcr.RepositoryException;
-import org.apache.jackrabbit.value.ValueFactoryImpl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -42,7 +40,18 @@ public enum QueryFunction {
 
     private static final Logger LOG = LoggerFactory.getLogger(QueryFunction.class);
 
-    public static String call(final String functionCall) throws RepositoryException {
+    /**
+     * Granularity, in milliseconds, of the dates computed: values bound from the same function within the same
+     * interval are equal, so that statements using them can be cached.
+     */
+    private static final long GRANULARITY = Math.max(1L, Long.getLong("net.tirasa.hct.query.dateGranularity", 60000L));
+
+    /**
+     * @param functionCall function call, as <tt>nowMinusDays(3)</tt>
+     * @return date computed, truncated to the granularity set via the <tt>net.tirasa.hct.query.dateGranularity</tt>
+     * system property (default 60000 milliseconds)
+     */
+    public static Calendar calendar(final String functionCall) {
         QueryFunction function = now;
 
         for (QueryFunction qf : values()) {
@@ -52,6 +61,7 @@ public enum QueryFunction {
         }
 
         final Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(calendar.getTimeInMillis() / GRANULARITY * GRANULARITY);
         int param = 0;
         if (function != now) {
             int startPos = function.name().length() + 1;
@@ -117,6 +127,6 @@ public enum QueryFunction {
             default:
         }
 
-        return ValueFactoryImpl.getInstance().createValue(calendar).getString();
+        return calendar;
     }
 }
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2012 Tirasa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.hct.util;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.jcr.Binary;
+import javax.jcr.RepositoryException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Copies binaries through pooled buffers or - only between files, or from a file to a socket, where no copy
+ * through the heap is involved - channel to channel transfer.
+ * Buffers can be tuned via the <tt>net.tirasa.hct.binary.bufferSize</tt> (bytes, default 64 KB) and
+ * <tt>net.tirasa.hct.binary.bufferPoolSize</tt> (default 32) system properties.
+ */
+public final class BinaryStreamer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BinaryStreamer.class);
+
+    private static final int BUFFER_SIZE = Integer.getInteger("net.tirasa.hct.binary.bufferSize", 64 * 1024);
+
+    private static final BlockingQueue<byte[]> BUFFERS =
+            new ArrayBlockingQueue<byte[]>(Integer.getInteger("net.tirasa.hct.binary.bufferPoolSize", 32));
+
+    private static final AtomicLong REQUESTS = new AtomicLong();
+
+    private static final AtomicLong BYTES = new AtomicLong();
+
+    private static final AtomicLong MILLIS = new AtomicLong();
+
+    private static final AtomicLong TRANSFERS = new AtomicLong();
+
+    private BinaryStreamer() {
+    }
+
+    /**
+     * @param output stream
+     * @return channel underlying the given stream if <tt>transferTo</tt> can actually hand bytes over to it without
+     * copying them through the heap, or null otherwise
+     */
+    private static WritableByteChannel getTransferTarget(final OutputStream output) {
+        if (output instanceof FileOutputStream) {
+            return ((FileOutputStream) output).getChannel();
+        }
+        return null;
+    }
+
+    private static boolean isTransferTarget(final WritableByteChannel target) {
+        return target instanceof FileChannel || target instanceof SocketChannel;
+    }
+
+    private static byte[] borrowBuffer() {
+        final byte[] buffer = BUFFERS.poll();
+        return buffer == null ? new byte[BUFFER_SIZE] : buffer;
+    }
+
+    private static void releaseBuffer(final byte[] buffer) {
+        BUFFERS.offer(buffer);
+    }
+
+    /**
+     * Copies the given stream until EOF.
+     *
+     * @param input source, not closed by this method
+     * @param output target, not closed by this method
+     * @return number of bytes copied
+     * @throws IOException if reading or writing fails
+     */
+    public static long copy(final InputStream input, final OutputStream output) throws IOException {
+        final long start = System.currentTimeMillis();
+
+        long copied = 0;
+        final WritableByteChannel target = getTransferTarget(output);
+        if (input instanceof FileInputStream && isTransferTarget(target)) {
+            final FileChannel source = ((FileInputStream) input).getChannel();
+            copied = transfer(source, source.position(), source.size() - source.position(), target);
+            source.position(source.position() + copied);
+        } else {
+            final byte[] buffer = borrowBuffer();
+            try {
+                for (int read = input.read(buffer); read != -1; read = input.read(buffer)) {
+                    output.write(buffer, 0, read);
+                    copied += read;
+                }
+            } finally {
+                releaseBuffer(buffer);
+            }
+        }
+
+        record(copied, System.currentTimeMillis() - start);
+        return copied;
+    }
+
+    /**
+     * Copies the given range of a file: via channel to channel transfer if the target is file or socket backed,
+     * through pooled buffers otherwise.
+     *
+     * @param source source, not closed by this method
+     * @param offset position of the first byte to copy
+     * @param length number of bytes to copy
+     * @param output target, not closed by this method
+     * @return number of bytes copied
+     * @throws IOException if reading or writing fails, or if the file ends before the given range
+     */
+    public static long copy(final FileChannel source, final long offset, final long length, final OutputStream output)
+            throws IOException {
+
+        final long start = System.currentTimeMillis();
+
+        final WritableByteChannel target = getTransferTarget(output);
+        final long copied;
+        if (isTransferTarget(target)) {
+            copied = transfer(source, offset, length, target);
+        } else {
+            copied = read(source, offset, length, output);
+        }
+
+        record(copied, System.currentTimeMillis() - start);
+        return copied;
+    }
+
+    private static long transfer(final FileChannel source, final long offset, final long length,
+            final WritableByteChannel target) throws IOException {
+
+        long copied = 0;
+        while (copied < length) {
+            final long transferred = source.transferTo(offset + copied, length - copied, target);
+            if (transferred <= 0) {
+                throw new IOException("Transfer stopped after " + copied + " of " + length + " bytes");
+            }
+            copied += transferred;
+        }
+        TRANSFERS.incrementAndGet();
+        return copied;
+    }
+
+    private static long read(final FileChannel source, final long offset, final long length,
+            final OutputStream output) throws IOException {
+
+        long copied = 0;
+        final byte[] buffer = borrowBuffer();
+        try {
+            final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+            while (copied < length) {
+                byteBuffer.clear();
+                byteBuffer.limit((int) Math.min(buffer.length, length - copied));
+                final int read = source.read(byteBuffer, offset + copied);
+                if (read == -1) {
+                    throw new IOException("File ended after " + copied + " of " + length + " bytes");
+                }
+
+                output.write(buffer, 0, read);
+                copied += read;
+            }
+        } finally {
+            releaseBuffer(buffer);
+        }
+        return copied;
+    }
+
+    /**
+     * Copies the given range of a binary, reading at the requested position.
+     *
+     * @param binary source
+     * @param offset position of the first byte to copy
+     * @param length number of bytes to copy
+     * @param output target, not closed by this method
+     * @return number of bytes copied
+     * @throws IOException if writing fails
+     * @throws RepositoryException if reading fails
+     */
+    public static long copy(final Binary binary, final long offset, final long length, final OutputStream output)
+            throws IOException, RepositoryException {
+
+        final long start = System.currentTimeMillis();
+
+        long copied = 0;
+        final byte[] buffer = borrowBuffer();
+        try {
+            while (copied < length) {
+                final int read = binary.read(buffer, offset + copied);
+                if (read == -1) {
+                    break;
+                }
+
+                final int toWrite = (int) Math.min(read, length - copied);
+                output.write(buffer, 0, toWrite);
+                copied += toWrite;
+            }
+        } finally {
+            releaseBuffer(buffer);
+        }
+
+        record(copied, System.currentTimeMillis() - start);
+        return copied;
+    }
+
+    private static void record(final long copied, final long elapsed) {
+        REQUESTS.incrementAndGet();
+        BYTES.addAndGet(copied);
+        MILLIS.addAndGet(elapsed);
+        LOG.debug("{} bytes copied in {} ms ({} KB/s)",
+                new Object[] { copied, elapsed, elapsed == 0 ? "-" : copied * 1000 / 1024 / elapsed });
+    }
+
+    public static long getRequests() {
+        return REQUESTS.get();
+    }
+
+    public static long getBytes() {
+        return BYTES.get();
+    }
+
+    /**
+     * @return number of copies performed via channel to channel transfer
+     */
+    public static long getTransfers() {
+        return TRANSFERS.get();
+    }
+
+    /**
+     * @return average throughput since startup, in bytes per second
+     */
+    public static long getThroughput() {
+        final long millis = MILLIS.get();
+        return millis == 0 ? 0 : BYTES.get() * 1000 / millis;
+    }
+}
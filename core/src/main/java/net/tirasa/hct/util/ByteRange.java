@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2012 Tirasa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.hct.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Byte range, as requested via the HTTP <tt>Range</tt> header; both ends are inclusive.
+ */
+public class ByteRange {
+
+    private static final String BYTES_UNIT = "bytes=";
+
+    private final long start;
+
+    private final long end;
+
+    public ByteRange(final long start, final long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Parses the value of an HTTP <tt>Range</tt> header against the given content length; overlapping or adjacent
+     * ranges are merged.
+     *
+     * @param header <tt>Range</tt> header value
+     * @param length content length
+     * @return satisfiable ranges, sorted - empty if none is satisfiable, or null if the header is not valid
+     */
+    public static List<ByteRange> parse(final String header, final long length) {
+        if (header == null || !header.trim().startsWith(BYTES_UNIT)) {
+            return null;
+        }
+
+        final String[] specs = StringUtils.split(header.trim().substring(BYTES_UNIT.length()), ',');
+        if (specs.length == 0) {
+            return null;
+        }
+
+        final List<ByteRange> ranges = new ArrayList<ByteRange>();
+        for (String spec : specs) {
+            final String trimmed = spec.trim();
+            final int dash = trimmed.indexOf('-');
+            if (dash == -1) {
+                return null;
+            }
+
+            final long start;
+            final long end;
+            try {
+                if (dash == 0) {
+                    // suffix range: last N bytes
+                    final long suffix = Long.parseLong(trimmed.substring(1));
+                    if (suffix < 0) {
+                        return null;
+                    }
+                    start = suffix == 0 ? length : Math.max(0, length - suffix);
+                    end = length - 1;
+                } else {
+                    start = Long.parseLong(trimmed.substring(0, dash));
+                    if (dash == trimmed.length() - 1) {
+                        end = length - 1;
+                    } else {
+                        final long last = Long.parseLong(trimmed.substring(dash + 1));
+                        if (last < start) {
+                            return null;
+                        }
+                        end = Math.min(length - 1, last);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+
+            if (start < length && start <= end) {
+                ranges.add(new ByteRange(start, end));
+            }
+        }
+
+        return merge(ranges);
+    }
+
+    private static List<ByteRange> merge(final List<ByteRange> ranges) {
+        Collections.sort(ranges, new Comparator<ByteRange>() {
+
+            @Override
+            public int compare(final ByteRange range1, final ByteRange range2) {
+                return range1.start < range2.start ? -1 : (range1.start == range2.start ? 0 : 1);
+            }
+        });
+
+        final List<ByteRange> merged = new ArrayList<ByteRange>(ranges.size());
+        for (ByteRange range : ranges) {
+            final ByteRange last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && range.start <= last.end + 1) {
+                merged.set(merged.size() - 1, new ByteRange(last.start, Math.max(last.end, range.end)));
+            } else {
+                merged.add(range);
+            }
+        }
+        return merged;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    public long getLength() {
+        return end - start + 1;
+    }
+
+    /**
+     * @param total content length
+     * @return value for the HTTP <tt>Content-Range</tt> header
+     */
+    public String toContentRange(final long total) {
+        return "bytes " + start + "-" + end + "/" + total;
+    }
+
+    @Override
+    public String toString() {
+        return start + "-" + end;
+    }
+}
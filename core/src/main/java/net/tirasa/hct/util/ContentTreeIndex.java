@@ -0,0 +1,382 @@
+/*
+ * Copyright (C) 2012 Tirasa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.hct.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.query.Query;
+import net.tirasa.hct.repository.HCTConnManager;
+import net.tirasa.hct.repository.HCTRepositoryObserver;
+import org.hippoecm.repository.HippoStdNodeType;
+import org.onehippo.taxonomy.api.TaxonomyNodeTypes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Process-wide snapshot of the structural nodes (folders and taxonomy categories) under <tt>/content</tt>. It is
+ * built by two queries (when this class is declared as Spring bean, or at first use otherwise) and then kept up to
+ * date via JCR observation: only node additions, removals and moves (and taxonomy key changes) are considered, and
+ * only the affected subtrees are re-read upon next lookup.
+ */
+public class ContentTreeIndex implements EventListener, InitializingBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ContentTreeIndex.class);
+
+    public static final String CONTENT_ROOT = "/content";
+
+    private static final String NODETYPE_TRANSLATION = "hippotaxonomy:translation";
+
+    private static final ContentTreeIndex INSTANCE = new ContentTreeIndex();
+
+    /**
+     * Structural nodes by path; sorted, so that subtrees are contiguous.
+     */
+    private final TreeMap<String, Entry> byPath = new TreeMap<String, Entry>();
+
+    private final Map<String, Set<String>> children = new HashMap<String, Set<String>>();
+
+    private final Map<String, Set<String>> frontiers = new HashMap<String, Set<String>>();
+
+    private final Map<String, Map<String, String>> taxonomies = new HashMap<String, Map<String, String>>();
+
+    /**
+     * Paths changed since last lookup.
+     */
+    private final Set<String> dirtyPaths = Collections.synchronizedSet(new LinkedHashSet<String>());
+
+    private volatile boolean built = false;
+
+    public static ContentTreeIndex getInstance() {
+        return INSTANCE;
+    }
+
+    public static boolean isIndexed(final String path) {
+        return path != null && path.startsWith(CONTENT_ROOT + "/");
+    }
+
+    private static int getDepth(final String path) {
+        int depth = 0;
+        for (int i = 1; i < path.length(); i++) {
+            if (path.charAt(i) == '/') {
+                depth++;
+            }
+        }
+        return path.length() > 1 ? depth + 1 : 0;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        final HCTConnManager connManager;
+        try {
+            connManager = HCTConnManager.getContentInstance();
+        } catch (Exception e) {
+            LOG.warn("Repository not available yet, content tree index will be built at first use", e);
+            return;
+        }
+        try {
+            INSTANCE.ensureBuilt(connManager.getSession());
+        } catch (RepositoryException e) {
+            LOG.error("While building content tree index", e);
+        } finally {
+            connManager.logout();
+        }
+    }
+
+    /**
+     * Equivalent to walking down from the given base, through folders and taxonomy categories, collecting the paths
+     * of nodes found at the given depth.
+     *
+     * @param session session, used if the index needs to be built or refreshed
+     * @param basePath base path, under <tt>/content</tt>
+     * @param targetDepth absolute depth
+     * @return paths of folders and taxonomy categories at the given depth, reachable from the given base
+     * @throws RepositoryException if the index could not be built or refreshed
+     */
+    public Set<String> getDepthFrontier(final Session session, final String basePath, final int targetDepth)
+            throws RepositoryException {
+
+        refresh(session);
+
+        final String key = basePath + "|" + targetDepth;
+        synchronized (this) {
+            Set<String> frontier = frontiers.get(key);
+            if (frontier == null) {
+                frontier = new TreeSet<String>();
+                findDepthFrontier(basePath, frontier, targetDepth);
+                frontier = Collections.unmodifiableSet(frontier);
+                frontiers.put(key, frontier);
+            }
+            return frontier;
+        }
+    }
+
+    /**
+     * Equivalent to walking down from the given taxonomy category, through taxonomy categories, collecting keys and
+     * paths of categories found up to the given depth.
+     *
+     * @param session session, used if the index needs to be built or refreshed
+     * @param basePath taxonomy category path
+     * @param targetDepth absolute depth
+     * @return paths of taxonomy categories, by key
+     * @throws RepositoryException if the index could not be built or refreshed
+     */
+    public Map<String, String> getTaxonomies(final Session session, final String basePath, final int targetDepth)
+            throws RepositoryException {
+
+        refresh(session);
+
+        final String key = basePath + "|" + targetDepth;
+        synchronized (this) {
+            Map<String, String> result = taxonomies.get(key);
+            if (result == null) {
+                result = new LinkedHashMap<String, String>();
+                final Entry base = byPath.get(basePath);
+                if (base != null && base.getKey() != null) {
+                    findTaxonomies(base, result, targetDepth);
+                }
+                result = Collections.unmodifiableMap(result);
+                taxonomies.put(key, result);
+            }
+            return result;
+        }
+    }
+
+    public synchronized int size() {
+        return byPath.size();
+    }
+
+    private void refresh(final Session session) throws RepositoryException {
+        if (!built) {
+            ensureBuilt(session);
+        }
+        if (!dirtyPaths.isEmpty()) {
+            refreshDirty(session);
+        }
+    }
+
+    private void findDepthFrontier(final String path, final Set<String> frontier, final int targetDepth) {
+        if (targetDepth == getDepth(path)) {
+            frontier.add(path);
+        } else {
+            final Set<String> childPaths = children.get(path);
+            if (childPaths != null) {
+                for (String childPath : childPaths) {
+                    findDepthFrontier(childPath, frontier, targetDepth);
+                }
+            }
+        }
+    }
+
+    private void findTaxonomies(final Entry category, final Map<String, String> result, final int targetDepth) {
+        if (targetDepth >= getDepth(category.getPath())) {
+            result.put(category.getKey(), category.getPath());
+
+            final Set<String> childPaths = children.get(category.getPath());
+            if (childPaths != null) {
+                for (String childPath : childPaths) {
+                    final Entry child = byPath.get(childPath);
+                    if (child.getKey() != null) {
+                        findTaxonomies(child, result, targetDepth);
+                    }
+                }
+            }
+        }
+    }
+
+    private synchronized void ensureBuilt(final Session session) throws RepositoryException {
+        if (built) {
+            return;
+        }
+
+        final long start = System.currentTimeMillis();
+
+        byPath.clear();
+        children.clear();
+        frontiers.clear();
+        taxonomies.clear();
+        dirtyPaths.clear();
+
+        // register first, so that no change made while building is missed
+        HCTRepositoryObserver.addEventListener(this, CONTENT_ROOT);
+
+        for (String nodeType : new String[] { HippoStdNodeType.NT_FOLDER,
+            TaxonomyNodeTypes.NODETYPE_HIPPOTAXONOMY_CATEGORY }) {
+
+            final Query query = session.getWorkspace().getQueryManager().createQuery(
+                    "SELECT * FROM [" + nodeType + "] AS node WHERE ISDESCENDANTNODE(node, '" + CONTENT_ROOT + "')",
+                    Query.JCR_SQL2);
+            for (final NodeIterator result = query.execute().getNodes(); result.hasNext();) {
+                index(result.nextNode());
+            }
+        }
+
+        built = true;
+        LOG.info("Content tree index built in {} ms with {} nodes", System.currentTimeMillis() - start, size());
+    }
+
+    private void index(final Node node) throws RepositoryException {
+        final String type = node.getPrimaryNodeType().getName();
+        if (HippoStdNodeType.NT_FOLDER.equals(type) || TaxonomyNodeTypes.NODETYPE_HIPPOTAXONOMY_CATEGORY.equals(type)) {
+            final String path = node.getPath();
+            byPath.put(path, new Entry(path,
+                    TaxonomyNodeTypes.NODETYPE_HIPPOTAXONOMY_CATEGORY.equals(type)
+                    ? node.getProperty(TaxonomyNodeTypes.HIPPOTAXONOMY_KEY).getString()
+                    : null));
+
+            final String parentPath = path.substring(0, Math.max(1, path.lastIndexOf('/')));
+            Set<String> siblings = children.get(parentPath);
+            if (siblings == null) {
+                siblings = new LinkedHashSet<String>();
+                children.put(parentPath, siblings);
+            }
+            siblings.add(path);
+        }
+    }
+
+    /**
+     * Indexes all structural nodes under the given one: categories can be found under non-structural nodes too (as
+     * taxonomy documents), so all children are visited.
+     *
+     * @param node subtree root
+     * @throws RepositoryException if reading fails
+     */
+    private void indexSubtree(final Node node) throws RepositoryException {
+        if (NODETYPE_TRANSLATION.equals(node.getPrimaryNodeType().getName())) {
+            return;
+        }
+
+        index(node);
+        for (final NodeIterator nodes = node.getNodes(); nodes.hasNext();) {
+            indexSubtree(nodes.nextNode());
+        }
+    }
+
+    private void removeSubtree(final String path) {
+        final List<String> removed = new ArrayList<String>();
+        if (byPath.remove(path) != null) {
+            removed.add(path);
+        }
+        for (final Iterator<String> itor = byPath.subMap(path + "/", path + "0").keySet().iterator();
+                itor.hasNext();) {
+
+            removed.add(itor.next());
+            itor.remove();
+        }
+
+        for (String removedPath : removed) {
+            children.remove(removedPath);
+        }
+        final Set<String> siblings = children.get(path.substring(0, Math.max(1, path.lastIndexOf('/'))));
+        if (siblings != null) {
+            siblings.remove(path);
+        }
+    }
+
+    private synchronized void refreshDirty(final Session session) throws RepositoryException {
+        if (dirtyPaths.isEmpty()) {
+            return;
+        }
+
+        final List<String> paths;
+        synchronized (dirtyPaths) {
+            paths = new ArrayList<String>(dirtyPaths);
+            dirtyPaths.clear();
+        }
+
+        for (String path : paths) {
+            LOG.debug("Refreshing content tree index under {}", path);
+            removeSubtree(path);
+            if (session.nodeExists(path)) {
+                indexSubtree(session.getNode(path));
+            }
+        }
+
+        frontiers.clear();
+        taxonomies.clear();
+    }
+
+    @Override
+    public void onEvent(final EventIterator events) {
+        while (events.hasNext()) {
+            final Event event = events.nextEvent();
+            try {
+                switch (event.getType()) {
+                    case Event.NODE_ADDED:
+                    case Event.NODE_REMOVED:
+                        dirtyPaths.add(event.getPath());
+                        break;
+
+                    case Event.NODE_MOVED:
+                        // removal and addition are notified as well, this covers reorders
+                        dirtyPaths.add(event.getPath().substring(0, Math.max(1, event.getPath().lastIndexOf('/'))));
+                        break;
+
+                    case Event.PROPERTY_ADDED:
+                    case Event.PROPERTY_CHANGED:
+                        if (event.getPath().endsWith("/" + TaxonomyNodeTypes.HIPPOTAXONOMY_KEY)) {
+                            dirtyPaths.add(event.getPath().substring(0, event.getPath().lastIndexOf('/')));
+                        }
+                        break;
+
+                    default:
+                }
+            } catch (RepositoryException e) {
+                LOG.error("While reading event {}, the whole index will be rebuilt", event, e);
+                built = false;
+            }
+        }
+    }
+
+    private static class Entry {
+
+        private final String path;
+
+        /**
+         * Taxonomy key, for taxonomy categories; null for folders.
+         */
+        private final String key;
+
+        public Entry(final String path, final String key) {
+            this.path = path;
+            this.key = key;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getKey() {
+            return key;
+        }
+    }
+}
@@ -17,6 +17,14 @@ package net.tirasa.hct.util;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.jcr.ItemNotFoundException;
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import net.tirasa.hct.repository.HCTConnManager;
@@ -57,7 +65,13 @@ public class ObjectUtils {
         }
         LOG.debug("About to return HippoItem <{}> for node {}", clazz.getName(), path);
 
-        return returnHippoItem((T) connManager.getObjConv().getObject(node), path);
+        HippoItem result = path == null ? null : connManager.getBeanCache().getByPath(path);
+        if (result == null) {
+            result = (HippoItem) connManager.getObjConv().getObject(node);
+            connManager.getBeanCache().put(null, path, result);
+        }
+
+        return returnHippoItem((T) result, path);
     }
 
     public static HippoItem getHippoItem(final HCTConnManager connManager, final String path)
@@ -72,14 +86,20 @@ public class ObjectUtils {
 
         LOG.debug("About to return HippoItem <{}> for path {}", clazz.getName(), path);
 
-        T result = null;
+        HippoItem result = null;
         try {
-            result = (T) connManager.getObjMan().getObject(URLDecoder.decode(path, "UTF-8"));
+            final String decoded = URLDecoder.decode(path, "UTF-8");
+
+            result = connManager.getBeanCache().getByPath(decoded);
+            if (result == null) {
+                result = (HippoItem) connManager.getObjMan().getObject(decoded);
+                connManager.getBeanCache().put(null, decoded, result);
+            }
         } catch (UnsupportedEncodingException e) {
             LOG.error("Couldn't decode {}", path, e);
         }
 
-        return returnHippoItem(result, path);
+        return returnHippoItem((T) result, path);
     }
 
     public static HippoItem getHippoItemByUuid(final HCTConnManager connManager, final String uuid)
@@ -94,7 +114,72 @@ public class ObjectUtils {
 
         LOG.debug("About to return HippoItem <{}> for uuid {}", clazz.getName(), uuid);
 
-        return returnHippoItem((T) connManager.getObjMan().getObjectByUuid(uuid), uuid);
+        HippoItem result = connManager.getBeanCache().getByUuid(uuid);
+        if (result == null) {
+            result = (HippoItem) connManager.getObjMan().getObjectByUuid(uuid);
+            connManager.getBeanCache().put(uuid, result == null ? null : result.getPath(), result);
+        }
+
+        return returnHippoItem((T) result, uuid);
+    }
+
+    public static List<HippoItem> getHippoItemsByUuids(final HCTConnManager connManager,
+            final Collection<String> uuids) throws ObjectBeanManagerException {
 
+        return getHippoItemsByUuids(connManager, uuids, HippoItem.class);
+    }
+
+    /**
+     * Resolves all given UUIDs at once: beans not yet in the connection's bean cache are loaded by identifier, each
+     * UUID once.
+     *
+     * @param <T> expected bean type
+     * @param connManager connection
+     * @param uuids UUIDs to resolve
+     * @param clazz expected bean type: items of different type are not returned
+     * @return resolved beans, in the same order as the given UUIDs (not found items are skipped)
+     * @throws ObjectBeanManagerException if any bean could not be mapped
+     */
+    public static <T extends HippoItem> List<T> getHippoItemsByUuids(final HCTConnManager connManager,
+            final Collection<String> uuids, final Class<T> clazz) throws ObjectBeanManagerException {
+
+        LOG.debug("About to return HippoItems <{}> for uuids {}", clazz.getName(), uuids);
+
+        final Map<String, HippoItem> items = new HashMap<String, HippoItem>();
+        final Set<String> missing = new LinkedHashSet<String>();
+        for (String uuid : uuids) {
+            if (uuid != null && !items.containsKey(uuid) && !missing.contains(uuid)) {
+                final HippoItem item = connManager.getBeanCache().getByUuid(uuid);
+                if (item == null) {
+                    missing.add(uuid);
+                } else {
+                    items.put(uuid, item);
+                }
+            }
+        }
+
+        for (String uuid : missing) {
+            Node node = null;
+            try {
+                node = connManager.getSession().getNodeByIdentifier(uuid);
+            } catch (ItemNotFoundException e) {
+                LOG.debug("No node found for uuid {}", uuid, e);
+            } catch (RepositoryException e) {
+                throw new ObjectBeanManagerException(e);
+            }
+
+            final HippoItem item = node == null ? null : (HippoItem) connManager.getObjConv().getObject(node);
+            connManager.getBeanCache().put(uuid, item == null ? null : item.getPath(), item);
+            items.put(uuid, item);
+        }
+
+        final List<T> result = new ArrayList<T>(uuids.size());
+        for (String uuid : uuids) {
+            final HippoItem item = returnHippoItem(items.get(uuid), uuid);
+            if (clazz.isInstance(item)) {
+                result.add(clazz.cast(item));
+            }
+        }
+        return result;
     }
 }
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2012 Tirasa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.hct.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.query.Query;
+import net.tirasa.hct.repository.HCTConnManager;
+import net.tirasa.hct.repository.HCTRepositoryObserver;
+import org.onehippo.taxonomy.api.TaxonomyNodeTypes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Process-wide index of taxonomy categories by key. It is built by a single query (when this class is declared as
+ * Spring bean, or at first use otherwise) and then kept up to date via JCR observation: subtrees affected by changes
+ * are re-read upon next lookup, into a copy of the index which then replaces the current one, so that readers never
+ * see a partially refreshed index.
+ */
+public class TaxonomyIndex implements EventListener, InitializingBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TaxonomyIndex.class);
+
+    public static final String TAXONOMIES_ROOT = "/content/taxonomies";
+
+    private static final String NODETYPE_TRANSLATION = "hippotaxonomy:translation";
+
+    private static final String PROP_LANGUAGE = "hippo:language";
+
+    private static final String PROP_MESSAGE = "hippo:message";
+
+    private static final TaxonomyIndex INSTANCE = new TaxonomyIndex();
+
+    /**
+     * Current index, never modified once published.
+     */
+    private volatile Map<String, Entry> byKey = Collections.emptyMap();
+
+    /**
+     * Paths changed since last lookup.
+     */
+    private final Set<String> dirtyPaths = Collections.synchronizedSet(new LinkedHashSet<String>());
+
+    private volatile boolean built = false;
+
+    public static TaxonomyIndex getInstance() {
+        return INSTANCE;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        final HCTConnManager connManager;
+        try {
+            connManager = HCTConnManager.getContentInstance();
+        } catch (Exception e) {
+            LOG.warn("Repository not available yet, taxonomy index will be built at first use", e);
+            return;
+        }
+        try {
+            INSTANCE.ensureBuilt(connManager.getSession());
+        } catch (RepositoryException e) {
+            LOG.error("While building taxonomy index", e);
+        } finally {
+            connManager.logout();
+        }
+    }
+
+    /**
+     * @param connManager connection, used if the index needs to be built or refreshed
+     * @param key taxonomy category key
+     * @return index entry for the given key, or null if not found
+     * @throws RepositoryException if the index could not be built or refreshed
+     */
+    public Entry get(final HCTConnManager connManager, final String key) throws RepositoryException {
+        if (!built) {
+            ensureBuilt(connManager.getSession());
+        }
+        if (!dirtyPaths.isEmpty()) {
+            refreshDirty(connManager.getSession());
+        }
+
+        return key == null ? null : byKey.get(key);
+    }
+
+    public int size() {
+        return byKey.size();
+    }
+
+    private synchronized void ensureBuilt(final Session session) throws RepositoryException {
+        if (built) {
+            return;
+        }
+
+        final long start = System.currentTimeMillis();
+
+        // register first, so that no change made while building is missed
+        HCTRepositoryObserver.addEventListener(this, TAXONOMIES_ROOT);
+
+        final Query query = session.getWorkspace().getQueryManager().createQuery(
+                "SELECT * FROM [" + TaxonomyNodeTypes.NODETYPE_HIPPOTAXONOMY_CATEGORY + "] AS taxonomy "
+                + "WHERE ISDESCENDANTNODE(taxonomy, '" + TAXONOMIES_ROOT + "')",
+                Query.JCR_SQL2);
+        final Map<String, Entry> index = new HashMap<String, Entry>();
+        for (final NodeIterator result = query.execute().getNodes(); result.hasNext();) {
+            index(index, result.nextNode());
+        }
+
+        byKey = Collections.unmodifiableMap(index);
+        built = true;
+        LOG.info("Taxonomy index built in {} ms with {} categories", System.currentTimeMillis() - start, size());
+    }
+
+    private static void index(final Map<String, Entry> index, final Node category) throws RepositoryException {
+        final Map<String, String> names = new HashMap<String, String>();
+        for (final NodeIterator children = category.getNodes(); children.hasNext();) {
+            final Node child = children.nextNode();
+            if (NODETYPE_TRANSLATION.equals(child.getPrimaryNodeType().getName())
+                    && child.hasProperty(PROP_LANGUAGE) && child.hasProperty(PROP_MESSAGE)) {
+
+                names.put(child.getProperty(PROP_LANGUAGE).getString(), child.getProperty(PROP_MESSAGE).getString());
+            }
+        }
+
+        final String key = category.getProperty(TaxonomyNodeTypes.HIPPOTAXONOMY_KEY).getString();
+        index.put(key, new Entry(key, category.getPath(), category.getIdentifier(), names));
+    }
+
+    private static void indexSubtree(final Map<String, Entry> index, final Node node) throws RepositoryException {
+        final String type = node.getPrimaryNodeType().getName();
+        if (NODETYPE_TRANSLATION.equals(type)) {
+            return;
+        }
+
+        if (TaxonomyNodeTypes.NODETYPE_HIPPOTAXONOMY_CATEGORY.equals(type)) {
+            index(index, node);
+        }
+        for (final NodeIterator children = node.getNodes(); children.hasNext();) {
+            indexSubtree(index, children.nextNode());
+        }
+    }
+
+    private static void removeSubtree(final Map<String, Entry> index, final String path) {
+        for (final Iterator<Entry> itor = index.values().iterator(); itor.hasNext();) {
+            final String entryPath = itor.next().getPath();
+            if (entryPath.equals(path) || entryPath.startsWith(path + "/")) {
+                itor.remove();
+            }
+        }
+    }
+
+    private synchronized void refreshDirty(final Session session) throws RepositoryException {
+        if (dirtyPaths.isEmpty()) {
+            return;
+        }
+
+        final List<String> paths;
+        synchronized (dirtyPaths) {
+            paths = new ArrayList<String>(dirtyPaths);
+            dirtyPaths.clear();
+        }
+
+        final Map<String, Entry> index = new HashMap<String, Entry>(byKey);
+        try {
+            for (String path : paths) {
+                // re-read from the nearest existing ancestor; changes to a translation affect its category
+                String refreshPath = path;
+                while (refreshPath.length() > TAXONOMIES_ROOT.length() && !session.nodeExists(refreshPath)) {
+                    refreshPath = refreshPath.substring(0, refreshPath.lastIndexOf('/'));
+                }
+                Node node = session.getNode(refreshPath);
+                if (NODETYPE_TRANSLATION.equals(node.getPrimaryNodeType().getName())) {
+                    node = node.getParent();
+                }
+
+                LOG.debug("Refreshing taxonomy index under {}", node.getPath());
+                removeSubtree(index, node.getPath());
+                indexSubtree(index, node);
+            }
+        } catch (RepositoryException e) {
+            // keep serving the current index, and retry upon next lookup
+            dirtyPaths.addAll(paths);
+            throw e;
+        }
+
+        byKey = Collections.unmodifiableMap(index);
+    }
+
+    @Override
+    public void onEvent(final EventIterator events) {
+        while (events.hasNext()) {
+            final Event event = events.nextEvent();
+            try {
+                final String path = event.getType() == Event.PROPERTY_ADDED
+                        || event.getType() == Event.PROPERTY_CHANGED || event.getType() == Event.PROPERTY_REMOVED
+                        ? event.getPath().substring(0, event.getPath().lastIndexOf('/'))
+                        : event.getPath();
+                dirtyPaths.add(path);
+            } catch (RepositoryException e) {
+                LOG.error("While reading event {}, invalidating the whole index", event, e);
+                dirtyPaths.add(TAXONOMIES_ROOT);
+            }
+        }
+    }
+
+    public static class Entry {
+
+        private final String key;
+
+        private final String path;
+
+        private final String uuid;
+
+        private final Map<String, String> names;
+
+        public Entry(final String key, final String path, final String uuid, final Map<String, String> names) {
+            this.key = key;
+            this.path = path;
+            this.uuid = uuid;
+            this.names = Collections.unmodifiableMap(names);
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getUuid() {
+            return uuid;
+        }
+
+        public Map<String, String> getNames() {
+            return names;
+        }
+
+        public String getLocalizedName(final String language) {
+            String localizedName = key;
+            if (names.size() == 1) {
+                localizedName = names.values().iterator().next();
+            } else if (names.containsKey(language)) {
+                localizedName = names.get(language);
+            }
+
+            return localizedName;
+        }
+    }
+}
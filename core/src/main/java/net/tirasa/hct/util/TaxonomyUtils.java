@@ -17,16 +17,13 @@ package net.tirasa.hct.util;
 
 import java.util.ArrayList;
 import java.util.List;
-import javax.jcr.NodeIterator;
 import javax.jcr.PathNotFoundException;
 import javax.jcr.RepositoryException;
-import javax.jcr.query.Query;
 import net.tirasa.hct.hstbeans.HCTTaxonomyCategoryBean;
 import net.tirasa.hct.repository.HCTConnManager;
 import net.tirasa.hct.taxonomy.frontend.HCTTaxonomyNodeTypes;
 import org.hippoecm.hst.content.beans.ObjectBeanManagerException;
 import org.hippoecm.repository.api.HippoNodeType;
-import org.onehippo.taxonomy.api.TaxonomyNodeTypes;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -65,17 +62,11 @@ public final class TaxonomyUtils {
     public static HCTTaxonomyCategoryBean getTaxonomy(final HCTConnManager connManager, final String key)
             throws RepositoryException, ObjectBeanManagerException {
 
-        final Query query = connManager.getSession().getWorkspace().getQueryManager().createQuery(
-                "SELECT * FROM [" + TaxonomyNodeTypes.NODETYPE_HIPPOTAXONOMY_CATEGORY + "] AS taxonomy "
-                + "WHERE (ISDESCENDANTNODE(taxonomy, '/content/taxonomies') "
-                + "AND [" + TaxonomyNodeTypes.HIPPOTAXONOMY_KEY + "] = '" + key + "')",
-                Query.JCR_SQL2);
-        final NodeIterator result = query.execute().getNodes();
-
-        if (!result.hasNext()) {
+        final TaxonomyIndex.Entry entry = TaxonomyIndex.getInstance().get(connManager, key);
+        if (entry == null) {
             throw new PathNotFoundException("Taxonomy category with key " + key);
         }
 
-        return ObjectUtils.getHippoItem(connManager, result.nextNode(), HCTTaxonomyCategoryBean.class);
+        return ObjectUtils.getHippoItemByUuid(connManager, entry.getUuid(), HCTTaxonomyCategoryBean.class);
     }
 }
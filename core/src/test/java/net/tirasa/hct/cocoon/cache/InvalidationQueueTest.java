@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2012 Tirasa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.hct.cocoon.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import net.tirasa.hct.cocoon.sax.Constants.Availability;
+import org.junit.After;
+import org.junit.Test;
+
+public class InvalidationQueueTest {
+
+    private static final long WINDOW = 200;
+
+    private static final long MAX_DELAY = 1000;
+
+    private final BlockingQueue<List<InvalidationQueue.Invalidation>> batches =
+            new LinkedBlockingQueue<List<InvalidationQueue.Invalidation>>();
+
+    private final InvalidationQueue queue = new InvalidationQueue(new InvalidationQueue.Handler() {
+
+        @Override
+        public void apply(final List<InvalidationQueue.Invalidation> batch) {
+            batches.add(batch);
+        }
+    }, WINDOW, MAX_DELAY);
+
+    private static InvalidationQueue.Invalidation invalidation(final String path) {
+        return new InvalidationQueue.Invalidation("en", Availability.live, path);
+    }
+
+    private List<InvalidationQueue.Invalidation> nextBatch() throws InterruptedException {
+        return batches.poll(MAX_DELAY * 5, TimeUnit.MILLISECONDS);
+    }
+
+    @After
+    public void shutdown() {
+        queue.shutdown();
+    }
+
+    @Test
+    public void duplicatesAreCoalesced() throws InterruptedException {
+        queue.offer(invalidation("/content/documents/a"));
+        queue.offer(invalidation("/content/documents/b"));
+        queue.offer(invalidation("/content/documents/a"));
+        queue.offer(new InvalidationQueue.Invalidation("en", Availability.preview, "/content/documents/a"));
+
+        final List<InvalidationQueue.Invalidation> batch = nextBatch();
+        assertNotNull(batch);
+        assertEquals("[en|live|/content/documents/a, en|live|/content/documents/b, "
+                + "en|preview|/content/documents/a]", batch.toString());
+
+        // wait for the worker to update its counters
+        queue.shutdown();
+        assertEquals(4, queue.getOffered());
+        assertEquals(1, queue.getCoalesced());
+        assertEquals(1, queue.getBatches());
+        assertEquals(3, queue.getApplied());
+        assertEquals(0, queue.getQueueDepth());
+    }
+
+    @Test
+    public void burstIsAppliedOnceQuiet() throws InterruptedException {
+        final long start = System.currentTimeMillis();
+        for (int i = 0; i < 5; i++) {
+            queue.offer(invalidation("/content/documents/" + i));
+            Thread.sleep(WINDOW / 4);
+        }
+
+        final List<InvalidationQueue.Invalidation> batch = nextBatch();
+        assertNotNull(batch);
+        assertEquals(5, batch.size());
+        assertTrue(System.currentTimeMillis() - start >= WINDOW);
+        assertNull(batches.poll(WINDOW * 2, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void continuousOffersAreAppliedWithinMaxDelay() throws InterruptedException {
+        final long start = System.currentTimeMillis();
+        int offered = 0;
+        while (batches.isEmpty() && System.currentTimeMillis() - start < MAX_DELAY * 3) {
+            queue.offer(invalidation("/content/documents/" + offered++));
+            Thread.sleep(WINDOW / 4);
+        }
+
+        // applied while offers were still coming
+        assertNotNull(batches.poll());
+        assertTrue(System.currentTimeMillis() - start < MAX_DELAY * 3);
+        assertTrue(offered > MAX_DELAY / WINDOW);
+        assertTrue(queue.getMaxLag() >= MAX_DELAY);
+        assertTrue(queue.getMaxLag() < MAX_DELAY * 2);
+    }
+
+    @Test
+    public void offersAfterShutdownAreDiscarded() throws InterruptedException {
+        queue.offer(invalidation("/content/documents/a"));
+        queue.shutdown();
+        queue.offer(invalidation("/content/documents/b"));
+
+        assertNull(batches.poll(WINDOW * 2, TimeUnit.MILLISECONDS));
+        assertEquals(0, queue.getQueueDepth());
+        assertEquals(0, queue.getBatches());
+    }
+}
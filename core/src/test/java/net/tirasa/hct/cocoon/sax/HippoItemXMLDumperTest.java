@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2012 Tirasa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.hct.cocoon.sax;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map.Entry;
+import org.apache.cocoon.sax.util.SAXConsumerAdapter;
+import org.junit.Test;
+import org.xml.sax.SAXException;
+
+/**
+ * Allocation benchmark for {@link HippoItemXMLDumper}: dumping fields into a consumer that discards events should
+ * not allocate per element.
+ */
+public class HippoItemXMLDumperTest {
+
+    private static final int FIELDS = 10000;
+
+    /**
+     * Bytes allowed per dumped field, for the occasional allocation made by the JVM itself: building qualified names,
+     * attributes and character arrays for each element would take several times as much.
+     */
+    private static final long MAX_BYTES_PER_FIELD = 64;
+
+    private static void dumpFields(final HippoItemXMLDumper dumper, final List<Entry<String, Object>> fields)
+            throws SAXException {
+
+        for (Entry<String, Object> field : fields) {
+            dumper.dumpField(field, "yyyy-MM-dd", Locale.ENGLISH);
+        }
+    }
+
+    @Test
+    public void dumpFieldAllocations() throws SAXException {
+        final java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        assumeTrue(allocations.isThreadAllocatedMemorySupported());
+        allocations.setThreadAllocatedMemoryEnabled(true);
+
+        final List<Entry<String, Object>> fields = new ArrayList<Entry<String, Object>>(FIELDS);
+        for (int i = 0; i < FIELDS; i++) {
+            fields.add(new SimpleEntry<String, Object>("field" + i, "value of field " + i));
+        }
+
+        final HippoItemXMLDumper dumper = new HippoItemXMLDumper(new SAXConsumerAdapter());
+        // warm up: let buffers grow and code get compiled
+        for (int i = 0; i < 10; i++) {
+            dumpFields(dumper, fields);
+        }
+
+        final long threadId = Thread.currentThread().getId();
+        final long before = allocations.getThreadAllocatedBytes(threadId);
+        dumpFields(dumper, fields);
+        final long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue(allocated + " bytes allocated for " + FIELDS + " fields",
+                allocated <= MAX_BYTES_PER_FIELD * FIELDS);
+    }
+}
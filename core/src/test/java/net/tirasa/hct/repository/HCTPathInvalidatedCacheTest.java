@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2012 Tirasa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.hct.repository;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+public class HCTPathInvalidatedCacheTest {
+
+    /**
+     * Weighs values by their length, records removed values and skips repository observation.
+     */
+    private static class TestCache extends HCTPathInvalidatedCache<String> {
+
+        private final List<String> removed = new ArrayList<String>();
+
+        public TestCache(final long maxWeight) {
+            super("test", "/content", maxWeight);
+        }
+
+        @Override
+        void register() {
+            // changes are notified by calling invalidate()
+        }
+
+        @Override
+        protected long weigh(final String value) {
+            return value.length();
+        }
+
+        @Override
+        protected void onRemoval(final String value) {
+            removed.add(value);
+        }
+    }
+
+    private static void changed(final HCTPathInvalidatedCache<?> cache, final String path) {
+        cache.invalidate(Collections.singleton(path), Collections.<String>emptySet());
+    }
+
+    private static void moved(final HCTPathInvalidatedCache<?> cache, final String path) {
+        cache.invalidate(Collections.<String>emptySet(), Collections.singleton(path));
+    }
+
+    @Test
+    public void weightIsSumOfEntries() {
+        final TestCache cache = new TestCache(100);
+        assertTrue(cache.put("a", "aaaa", "/content/a"));
+        assertTrue(cache.put("b", "bb", "/content/b"));
+        assertEquals(2, cache.size());
+        assertEquals(6, cache.getWeight());
+
+        assertTrue(cache.put("a", "a", "/content/a"));
+        assertEquals(3, cache.getWeight());
+        assertEquals(Collections.singletonList("aaaa"), cache.removed);
+
+        cache.remove("b");
+        assertEquals(1, cache.getWeight());
+        cache.clear();
+        assertEquals(0, cache.getWeight());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void leastRecentlyUsedAreEvictedFirst() {
+        final TestCache cache = new TestCache(10);
+        cache.put("a", "aaaa", "/content/a");
+        cache.put("b", "bbbb", "/content/b");
+        assertEquals("aaaa", cache.get("a"));
+
+        cache.put("c", "cccc", "/content/c");
+        assertNull(cache.get("b"));
+        assertEquals("aaaa", cache.get("a"));
+        assertEquals("cccc", cache.get("c"));
+        assertEquals(8, cache.getWeight());
+        assertEquals(1, cache.getEvictions());
+        assertEquals(Collections.singletonList("bbbb"), cache.removed);
+    }
+
+    @Test
+    public void heavierThanMaxIsNotCached() {
+        final TestCache cache = new TestCache(10);
+        cache.put("a", "aaaa", "/content/a");
+        assertFalse(cache.put("b", "bbbbbbbbbbb", "/content/b"));
+        assertEquals("aaaa", cache.get("a"));
+        assertEquals(4, cache.getWeight());
+        assertEquals(0, cache.getEvictions());
+    }
+
+    @Test
+    public void changesRemoveEntriesAtOrAbove() {
+        final TestCache cache = new TestCache(100);
+        cache.put("folder", "f", "/content/documents");
+        cache.put("doc", "d", "/content/documents/doc");
+        cache.put("other", "o", "/content/documents/other");
+        cache.put("child", "c", "/content/documents/other/child");
+
+        changed(cache, "/content/documents/other");
+        assertNull(cache.get("folder"));
+        assertNull(cache.get("other"));
+        assertEquals("d", cache.get("doc"));
+        assertEquals("c", cache.get("child"));
+        assertEquals(2, cache.getWeight());
+        assertEquals(2, cache.getInvalidations());
+    }
+
+    @Test
+    public void structuralChangesAlsoRemoveEntriesBelow() {
+        final TestCache cache = new TestCache(100);
+        cache.put("folder", "f", "/content/documents");
+        cache.put("doc", "d", "/content/documents/doc");
+        cache.put("sibling", "s", "/content/documents-old");
+
+        moved(cache, "/content/documents");
+        assertNull(cache.get("folder"));
+        assertNull(cache.get("doc"));
+        assertEquals("s", cache.get("sibling"));
+        assertEquals(1, cache.getWeight());
+    }
+
+    @Test
+    public void stalePutsAreRejectedOnlyForAffectedPaths() {
+        final TestCache cache = new TestCache(100);
+        final long since = cache.getGeneration();
+
+        changed(cache, "/content/documents/a");
+        assertFalse(cache.put("a", "a", since, "/content/documents/a"));
+        assertTrue(cache.put("b", "b", since, "/content/documents/b"));
+        assertTrue(cache.put("c", "c", cache.getGeneration(), "/content/documents/a"));
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2012 Tirasa
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tirasa.hct.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import org.junit.Test;
+
+public class ByteRangeTest {
+
+    private static void assertRanges(final String expected, final List<ByteRange> actual) {
+        assertEquals(expected, actual.toString());
+    }
+
+    @Test
+    public void closedRange() {
+        final List<ByteRange> ranges = ByteRange.parse("bytes=0-499", 1000);
+        assertRanges("[0-499]", ranges);
+        assertEquals(500, ranges.get(0).getLength());
+        assertEquals("bytes 0-499/1000", ranges.get(0).toContentRange(1000));
+    }
+
+    @Test
+    public void closedRangeBeyondLength() {
+        assertRanges("[900-999]", ByteRange.parse("bytes=900-5000", 1000));
+    }
+
+    @Test
+    public void openEndedRange() {
+        assertRanges("[200-999]", ByteRange.parse("bytes=200-", 1000));
+    }
+
+    @Test
+    public void openEndedRangeBeyondLength() {
+        assertTrue(ByteRange.parse("bytes=1000-", 1000).isEmpty());
+    }
+
+    @Test
+    public void suffixRange() {
+        assertRanges("[900-999]", ByteRange.parse("bytes=-100", 1000));
+    }
+
+    @Test
+    public void suffixRangeLongerThanContent() {
+        assertRanges("[0-999]", ByteRange.parse("bytes=-5000", 1000));
+    }
+
+    @Test
+    public void emptySuffixRange() {
+        assertTrue(ByteRange.parse("bytes=-0", 1000).isEmpty());
+    }
+
+    @Test
+    public void lastBeforeFirst() {
+        assertNull(ByteRange.parse("bytes=500-499", 1000));
+    }
+
+    @Test
+    public void invalidHeaders() {
+        assertNull(ByteRange.parse(null, 1000));
+        assertNull(ByteRange.parse("items=0-1", 1000));
+        assertNull(ByteRange.parse("bytes=", 1000));
+        assertNull(ByteRange.parse("bytes=100", 1000));
+        assertNull(ByteRange.parse("bytes=a-b", 1000));
+        assertNull(ByteRange.parse("bytes=0-1,x", 1000));
+    }
+
+    @Test
+    public void overlappingRanges() {
+        assertRanges("[0-599]", ByteRange.parse("bytes=0-499,400-599", 1000));
+    }
+
+    @Test
+    public void adjacentRanges() {
+        assertRanges("[0-599]", ByteRange.parse("bytes=0-99,100-599", 1000));
+    }
+
+    @Test
+    public void disjointRangesAreSorted() {
+        assertRanges("[0-9, 500-599, 990-999]", ByteRange.parse("bytes=500-599, -10, 0-9", 1000));
+    }
+
+    @Test
+    public void containedRange() {
+        assertRanges("[0-499]", ByteRange.parse("bytes=100-199,0-499", 1000));
+    }
+
+    @Test
+    public void zeroLengthContent() {
+        assertTrue(ByteRange.parse("bytes=0-", 0).isEmpty());
+        assertTrue(ByteRange.parse("bytes=0-0", 0).isEmpty());
+        assertTrue(ByteRange.parse("bytes=-100", 0).isEmpty());
+    }
+}